@@ -0,0 +1,107 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucket key hashing and lookups over the loader's key space: 10 apps x 10 versions x
+ * {@code builds} builds x 10 offsets, one module per app. Query keys are built from copies
+ * of the strings, so equals compares characters as it does for strings decoded from BSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BucketKeyBenchmark {
+
+    private static final String[] APPS = {
+            "Photoshop", "Illustrator", "Premiere Pro", "After Effects", "InDesign",
+            "XD", "Lightroom", "Acrobat Pro", "Animate", "Dreamweaver"};
+    private static final int QUERIES = 4096;
+
+    // 10 builds gives the 10,000 keys of a default load, 100 a larger catalogue
+    @Param({"10", "100"})
+    public int builds;
+
+    private final Map<BucketKey, Integer> bucketMap = new HashMap<>();
+    private final BucketIndex bucketIndex = new BucketIndex(10000);
+    private BucketKey[] queryKeys;
+    private BucketKey[] equalKeys;
+    private int next;
+
+    @Setup
+    public void setup() {
+        int bucketId = 10000;
+        for (String app : APPS) {
+            for (int version = 1; version <= 10; version++) {
+                for (int build = 1; build <= builds; build++) {
+                    for (int offset = 1; offset <= 10; offset++) {
+                        BucketKey key = new BucketKey(app, "2024." + version, String.valueOf(build), app + "Core", 1024 * offset);
+                        bucketMap.put(key, bucketId++);
+                        bucketIndex.lookupOrAllocate(key.getProduct(), key.getVersion(), key.getBuild(),
+                                key.getModule(), key.getOffset());
+                    }
+                }
+            }
+        }
+
+        Random random = new Random(42);
+        queryKeys = new BucketKey[QUERIES];
+        equalKeys = new BucketKey[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String app = APPS[random.nextInt(APPS.length)];
+            String version = "2024." + (random.nextInt(10) + 1);
+            String build = String.valueOf(random.nextInt(builds) + 1);
+            int offset = 1024 * (random.nextInt(10) + 1);
+            queryKeys[i] = new BucketKey(new String(app), new String(version), new String(build), app + "Core", offset);
+            equalKeys[i] = new BucketKey(new String(app), new String(version), new String(build), app + "Core", offset);
+        }
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int hashCodeOnly() {
+        return queryKeys[nextQuery()].hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsOnly() {
+        int i = nextQuery();
+        return queryKeys[i].equals(equalKeys[i]);
+    }
+
+    // What the original Phase 2 did per crash: build a key object and look it up
+    @Benchmark
+    public Integer hashMapLookup() {
+        BucketKey query = queryKeys[nextQuery()];
+        return bucketMap.get(new BucketKey(query.getProduct(), query.getVersion(), query.getBuild(),
+                query.getModule(), query.getOffset()));
+    }
+
+    @Benchmark
+    public int bucketIndexLookup() {
+        BucketKey query = queryKeys[nextQuery()];
+        return bucketIndex.lookup(query.getProduct(), query.getVersion(), query.getBuild(),
+                query.getModule(), query.getOffset());
+    }
+}
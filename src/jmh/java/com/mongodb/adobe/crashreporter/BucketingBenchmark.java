@@ -0,0 +1,138 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end bucketing of an in-memory stream of projected crash records against stand-in
+ * collections, reported per crash. "client" is the Phase 2 loop (index lookup, staged
+ * writes, one bulk flush per batch); "ingest" is the IngestBucketer path used by ingest
+ * mode and the parallel engine. A "cold" index starts empty on every invocation, so every
+ * key creates a bucket; a "warm" one already holds them all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BucketingBenchmark {
+
+    private static final int CRASHES = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({"client", "ingest"})
+    public String path;
+
+    @Param({"cold", "warm"})
+    public String index;
+
+    private final MongoCollection<Document> crashPkgCollection = StandInCollection.create("CRD_CRASH_PKG", Document.class);
+    private final MongoCollection<Document> bucketCollection = StandInCollection.create("CRD_BUCKET_ADOBE", Document.class);
+    private final List<Document> crashes = new ArrayList<>(CRASHES);
+    private BucketIndex bucketIndex;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void generateCrashes() {
+        // Shaped like BUCKETING_PROJECTION results
+        Random random = new Random(42);
+        Date crashDate = new Date();
+        for (int i = 1; i <= CRASHES; i++) {
+            Document appSubDoc = CrashReporterDataLoaderV2.createAppSubDoc(random);
+            crashes.add(new Document("ID", i)
+                    .append("MODULE", appSubDoc.getString("NAME") + "Core")
+                    .append("OFFSET", 1024 * (random.nextInt(10) + 1))
+                    .append("CRASHDATE", crashDate)
+                    .append("APP", appSubDoc));
+        }
+        bucketIndex = new BucketIndex(10000);
+
+        // The write stage logs every flush
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void restoreStdout() {
+        System.setOut(stdout);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetIndex() {
+        if ("cold".equals(index)) {
+            bucketIndex = new BucketIndex(10000);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CRASHES)
+    public int bucket() {
+        return "client".equals(path) ? bucketClient() : bucketIngest();
+    }
+
+    private int bucketClient() {
+        BucketWriteStage writeStage = new BucketWriteStage(crashPkgCollection, bucketCollection);
+        int created = 0;
+        for (int i = 0; i < crashes.size(); i++) {
+            if (CrashReporterDataLoaderV2.bucketCrash(bucketIndex, writeStage, crashes.get(i))) {
+                created++;
+            }
+            if ((i + 1) % BATCH_SIZE == 0) {
+                writeStage.flush();
+            }
+        }
+        writeStage.flush();
+        return created;
+    }
+
+    private int bucketIngest() {
+        IngestBucketer bucketer = new IngestBucketer(bucketIndex, bucketCollection,
+                CrashReporterDataLoaderV2::createBucketDocument);
+        BucketWriteStage writeStage = new BucketWriteStage(crashPkgCollection, bucketCollection);
+        IngestBucketer.Batch<Document> batch = new IngestBucketer.Batch<>(1, BATCH_SIZE);
+        int assigned = 0;
+        for (int i = 0; i < crashes.size(); i++) {
+            Document crashDoc = crashes.get(i);
+            int bucketId = bucketer.assign(batch, (Document) crashDoc.get("APP"), crashDoc.getString("MODULE"),
+                    crashDoc.getInteger("OFFSET"), crashDoc.getDate("CRASHDATE"));
+            writeStage.assign(crashDoc.getInteger("ID"), bucketId);
+            assigned++;
+            if ((i + 1) % BATCH_SIZE == 0) {
+                bucketer.writeBuckets(batch);
+                writeStage.flush();
+                batch = new IngestBucketer.Batch<>(i + 2, BATCH_SIZE);
+            }
+        }
+        bucketer.writeBuckets(batch);
+        writeStage.flush();
+        return assigned;
+    }
+}
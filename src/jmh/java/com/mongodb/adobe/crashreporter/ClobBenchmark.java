@@ -0,0 +1,80 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.BsonBinary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one CLOB payload: built from scratch by getClob, or served by the ClobCache,
+ * and the cost of reading it back from each stored encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClobBenchmark {
+
+    @Param({"1024", "51200", "1048576"})
+    public int targetBytes;
+
+    private final ClobCache clobCache = new ClobCache(CrashReporterDataLoaderV2::getClob);
+    private String base;
+    private int sizeClass;
+    private BsonBinary binary;
+    private BsonBinary deflated;
+    private BsonBinary zstd;
+
+    @Setup
+    public void setup() {
+        base = ClobField.EXCEPTION.base("Photoshop");
+        sizeClass = PayloadSizeModel.sizeClass(targetBytes);
+        clobCache.string(ClobField.EXCEPTION, "Photoshop", sizeClass);
+        clobCache.element(ClobField.EXCEPTION, "Photoshop", sizeClass, ClobEncoding.BINARY);
+        binary = clobCache.binary(ClobField.EXCEPTION, "Photoshop", sizeClass, ClobEncoding.BINARY);
+        deflated = clobCache.binary(ClobField.EXCEPTION, "Photoshop", sizeClass, ClobEncoding.DEFLATE);
+        zstd = clobCache.binary(ClobField.EXCEPTION, "Photoshop", sizeClass, ClobEncoding.ZSTD);
+    }
+
+    @Benchmark
+    public String getClob() {
+        return CrashReporterDataLoaderV2.getClob(base, targetBytes);
+    }
+
+    @Benchmark
+    public String cachedString() {
+        return clobCache.string(ClobField.EXCEPTION, "Photoshop", sizeClass);
+    }
+
+    @Benchmark
+    public byte[] cachedBinaryElement() {
+        return clobCache.element(ClobField.EXCEPTION, "Photoshop", sizeClass, ClobEncoding.BINARY);
+    }
+
+    @Benchmark
+    public String decodeBinary() {
+        return ClobEncoding.decode(binary);
+    }
+
+    @Benchmark
+    public String decodeDeflate() {
+        return ClobEncoding.decode(deflated);
+    }
+
+    @Benchmark
+    public String decodeZstd() {
+        return ClobEncoding.decode(zstd);
+    }
+}
@@ -0,0 +1,62 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building one full crash package up to its BSON bytes, as an org.bson.Document encoded
+ * with the driver's codec and on the raw BSON backend, which writes the bytes directly.
+ * CLOB sizes follow the crash.clobSize properties, pass them with -jvmArgsAppend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrashDocumentBenchmark {
+
+    // What the driver encodes a Document with on insert
+    private static final Codec<Document> DOCUMENT_CODEC = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    private final Random random = new Random(42);
+    private RawCrashPackageEncoder rawEncoder;
+    private int nextId = 1;
+
+    @Setup
+    public void setup() {
+        rawEncoder = new RawCrashPackageEncoder(new ClobCache(CrashReporterDataLoaderV2::getClob),
+                PayloadModel.fromSystemProperties(), ClobEncoding.STRING);
+    }
+
+    @Benchmark
+    public RawBsonDocument document() {
+        Document appSubDoc = CrashReporterDataLoaderV2.createAppSubDoc(random);
+        Document crashDoc = CrashReporterDataLoaderV2.createCrashDocument(nextId++, appSubDoc,
+                appSubDoc.getString("NAME") + "Core", 1024 * (random.nextInt(10) + 1), null, random);
+        return new RawBsonDocument(crashDoc, DOCUMENT_CODEC);
+    }
+
+    @Benchmark
+    public RawBsonDocument raw() {
+        Document appSubDoc = CrashReporterDataLoaderV2.createAppSubDoc(random);
+        return rawEncoder.encode(nextId++, appSubDoc,
+                appSubDoc.getString("NAME") + "Core", 1024 * (random.nextInt(10) + 1), null, random);
+    }
+}
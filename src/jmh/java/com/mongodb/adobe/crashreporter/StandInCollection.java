@@ -0,0 +1,122 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.InsertManyResult;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A MongoCollection that needs no server, for benchmarks.
+ *
+ * Writes are encoded to BSON the way the driver would before sending them, so their
+ * encoding cost and allocations are measured, and then dropped. Only the write methods
+ * the bucketing code calls are supported; everything else throws.
+ */
+final class StandInCollection {
+
+    private static final CodecRegistry CODECS = MongoClientSettings.getDefaultCodecRegistry();
+
+    private StandInCollection() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> MongoCollection<T> create(String name, Class<T> documentClass) {
+        MongoNamespace namespace = new MongoNamespace("CRASH", name);
+        Codec<T> codec = CODECS.get(documentClass);
+        BasicOutputBuffer buffer = new BasicOutputBuffer(64 * 1024);
+
+        return (MongoCollection<T>) Proxy.newProxyInstance(StandInCollection.class.getClassLoader(),
+                new Class<?>[]{MongoCollection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getNamespace":
+                            return namespace;
+                        case "getDocumentClass":
+                            return documentClass;
+                        case "getCodecRegistry":
+                            return CODECS;
+                        case "bulkWrite":
+                            synchronized (buffer) {
+                                int count = 0;
+                                for (WriteModel<T> model : (List<WriteModel<T>>) args[0]) {
+                                    encode(buffer, codec, documentClass, model);
+                                    count++;
+                                }
+                                return BulkWriteResult.acknowledged(0, count, 0, count,
+                                        Collections.emptyList(), Collections.emptyList());
+                            }
+                        case "insertMany":
+                            synchronized (buffer) {
+                                for (T document : (List<T>) args[0]) {
+                                    encodeDocument(buffer, codec, document);
+                                }
+                                return InsertManyResult.acknowledged(Collections.emptyMap());
+                            }
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "StandInCollection(" + namespace + ")";
+                        default:
+                            throw new UnsupportedOperationException("Stand-in collection does not support " + method.getName());
+                    }
+                });
+    }
+
+    private static <T> void encode(BasicOutputBuffer buffer, Codec<T> codec, Class<T> documentClass, WriteModel<T> model) {
+        if (model instanceof InsertOneModel) {
+            encodeDocument(buffer, codec, ((InsertOneModel<T>) model).getDocument());
+        } else if (model instanceof ReplaceOneModel) {
+            ReplaceOneModel<T> replace = (ReplaceOneModel<T>) model;
+            encodeBson(buffer, replace.getFilter(), documentClass);
+            encodeDocument(buffer, codec, replace.getReplacement());
+        } else if (model instanceof UpdateOneModel) {
+            UpdateOneModel<T> update = (UpdateOneModel<T>) model;
+            encodeBson(buffer, update.getFilter(), documentClass);
+            encodeBson(buffer, update.getUpdate(), documentClass);
+        } else if (model instanceof UpdateManyModel) {
+            UpdateManyModel<T> update = (UpdateManyModel<T>) model;
+            encodeBson(buffer, update.getFilter(), documentClass);
+            encodeBson(buffer, update.getUpdate(), documentClass);
+        } else if (model instanceof DeleteOneModel) {
+            encodeBson(buffer, ((DeleteOneModel<T>) model).getFilter(), documentClass);
+        } else if (model instanceof DeleteManyModel) {
+            encodeBson(buffer, ((DeleteManyModel<T>) model).getFilter(), documentClass);
+        } else {
+            throw new UnsupportedOperationException("Stand-in collection does not support " + model);
+        }
+    }
+
+    private static <T> void encodeBson(BasicOutputBuffer buffer, Bson bson, Class<T> documentClass) {
+        BsonDocument document = bson.toBsonDocument(documentClass, CODECS);
+        encodeDocument(buffer, CODECS.get(BsonDocument.class), document);
+    }
+
+    private static <T> void encodeDocument(BasicOutputBuffer buffer, Codec<T> codec, T document) {
+        buffer.truncateToPosition(0);
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            codec.encode(writer, document, EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+        }
+    }
+}
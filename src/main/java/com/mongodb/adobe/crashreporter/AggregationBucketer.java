@@ -0,0 +1,289 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server-side bucketing engine for backfills.
+ *
+ * Instead of pulling every crash to the client, each chunk of CRD_CRASH_PKG (an ID range)
+ * is bucketed by three aggregations that run entirely on the server:
+ * <ol>
+ *   <li>$group the chunk's unbucketed crashes on the five bucket dimensions and $merge the
+ *       counts and last crash date into CRD_BUCKET_ADOBE, matched on its unique key index</li>
+ *   <li>number the buckets that were just inserted ($setWindowFields) and give them IDs
+ *       after the current max ID</li>
+ *   <li>$lookup each crash's bucket and $merge BUCKET_ID_ADOBE back into CRD_CRASH_PKG</li>
+ * </ol>
+ * Only crashes without BUCKET_ID_ADOBE are grouped, but a chunk that failed after step 1
+ * has counted crashes that step 3 never marked. With a checkpoint, each chunk therefore
+ * carries a batch marker that step 1 records on the buckets it counts into, and a bucket
+ * that already holds the marker keeps its counters (see {@link LoaderCheckpoint}). The last
+ * finished chunk is saved after step 3, so a resumed run starts at the chunk that failed.
+ * Without one (no crash.runId), running a failed chunk again may count its crashes twice.
+ *
+ * Chunks are small and can be spaced out with a pause so the job can run next to
+ * production traffic. Requires MongoDB 5.0+.
+ */
+class AggregationBucketer {
+
+    private static final LoaderMetrics.Stat MERGE_TIMER = LoaderMetrics.timer("mongo.aggregate.merge");
+
+    private static final List<String> BUCKET_KEY_FIELDS = Arrays.asList(
+            "APP.NAME", "APP.VERSION", "APP.BUILD", "MODULE_NAME", "OFFSET");
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+    private final int chunkSize;
+    private final long chunkPauseMillis;
+    private final int firstBucketId;
+    private final LoaderCheckpoint checkpoint;
+
+    AggregationBucketer(MongoDatabase db, int chunkSize, long chunkPauseMillis, int firstBucketId,
+                        LoaderCheckpoint checkpoint) {
+        this.crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+        this.bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+        this.chunkSize = chunkSize;
+        this.chunkPauseMillis = chunkPauseMillis;
+        this.firstBucketId = firstBucketId;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Buckets every crash package that has no BUCKET_ID_ADOBE yet, one ID chunk at a time.
+     */
+    void run() {
+        if (checkpoint != null) {
+            checkpoint.checkPhase2Engine("aggregation");
+            checkpoint.checkPhase2ChunkSize(chunkSize);
+            if (checkpoint.isComplete("PHASE2")) {
+                System.out.println("Run '" + checkpoint.runId() + "' is already bucketed.");
+                return;
+            }
+        }
+
+        // $merge needs a unique index on its "on" fields; the back-fill $lookup and chunking use the others
+        bucketCollection.createIndex(BucketIndex.BUCKET_KEY_INDEX, new IndexOptions().unique(true));
+        bucketCollection.createIndex(Indexes.ascending("ID"));
+        crashPkgCollection.createIndex(Indexes.ascending("ID"));
+
+        Document first = crashPkgCollection.find().projection(Projections.include("ID"))
+                .sort(Sorts.ascending("ID")).first();
+        Document last = crashPkgCollection.find().projection(Projections.include("ID"))
+                .sort(Sorts.descending("ID")).first();
+        if (first == null || last == null) {
+            System.out.println("No crash documents to bucket.");
+            return;
+        }
+        int minId = first.getInteger("ID");
+        int maxId = last.getInteger("ID");
+
+        // Chunks are not cut at the max ID, so a resumed run cuts the same ones and finds the same markers
+        long firstChunkStart = checkpoint == null ? minId : checkpoint.phase2LastId(minId - 1) + 1L;
+        if (firstChunkStart > minId) {
+            System.out.println("Resuming aggregation bucketing after crash ID " + (firstChunkStart - 1));
+        }
+
+        long start = System.nanoTime();
+        int chunkCount = 0;
+        for (long chunkStart = firstChunkStart; chunkStart <= maxId; chunkStart += chunkSize) {
+            int fromId = (int) chunkStart;
+            int toId = (int) Math.min(Integer.MAX_VALUE, chunkStart + chunkSize - 1);
+            long chunkStartNanos = System.nanoTime();
+
+            mergeBucketCounts(fromId, toId, checkpoint == null ? null : checkpoint.batchMarker("aggregate", fromId));
+            int newBuckets = assignNewBucketIds();
+            backfillCrashBucketIds(fromId, toId);
+            if (checkpoint != null) {
+                checkpoint.savePhase2(toId, null);
+            }
+
+            chunkCount++;
+            System.out.println("Aggregated chunk #" + chunkCount + " (IDs " + fromId + "-" + toId + ")" +
+                    " - new buckets: " + newBuckets +
+                    " - " + ((System.nanoTime() - chunkStartNanos) / 1_000_000) + " ms");
+            pauseBetweenChunks();
+        }
+
+        System.out.println("Aggregation bucketing complete: " + chunkCount + " chunks in " +
+                ((System.nanoTime() - start) / 1_000_000) + " ms, " +
+                bucketCollection.countDocuments() + " buckets in total.");
+        if (checkpoint != null) {
+            checkpoint.markComplete("PHASE2");
+        }
+    }
+
+    /**
+     * Step 1: group the chunk's unbucketed crashes and merge the counters into the buckets.
+     * New buckets are inserted without an ID; step 2 numbers them. A bucket that already
+     * holds {@code marker} counted this chunk before and is left as it is.
+     */
+    private void mergeBucketCounts(int fromId, int toId, String marker) {
+        String productName = "$APP.NAME";
+        Document counters = new Document()
+                .append("CRASH_COUNT", new Document("$add",
+                        Arrays.asList("$CRASH_COUNT", "$$new.CRASH_COUNT")))
+                .append("UNIQUE_CRASH_USER_STEPS_COUNT", new Document("$add",
+                        Arrays.asList("$UNIQUE_CRASH_USER_STEPS_COUNT", "$$new.UNIQUE_CRASH_USER_STEPS_COUNT")))
+                .append("LAST_CRASH_DATE", new Document("$max",
+                        Arrays.asList("$LAST_CRASH_DATE", "$$new.LAST_CRASH_DATE")));
+        Document bucket = new Document("_id", 0)
+                .append("APP", 1)
+                .append("NAME", new Document("$concat", Arrays.asList("Crash in ", productName)))
+                .append("OFFSET", "$_id.offset")
+                .append("BUCKET_CREATED", "$$NOW")
+                .append("STATUS", new Document("$literal", 1))
+                .append("PARENT_BUCKET", new Document("$literal", null))
+                .append("DEVNOTES", new Document("$concat",
+                        Arrays.asList("Issue while using ", productName, " under high load.")))
+                .append("CRASH_COUNT", 1)
+                .append("LAST_CRASH_DATE", 1)
+                .append("STACK_ELEMENT", new Document("$concat", Arrays.asList("com.adobe.",
+                        new Document("$replaceAll", new Document("input", productName)
+                                .append("find", " ").append("replacement", "")),
+                        "::renderFunction")))
+                .append("MODULE_NAME", "$_id.module")
+                .append("USER_STEPS", new Document("$literal", "Y"))
+                .append("UNIQUE_CRASH_USER_STEPS_COUNT", "$CRASH_COUNT")
+                .append("PLATFORM", new Document("$literal", "Windows"))
+                .append("OS_GROUP_IDS", new Document("$literal", "WIN11,WIN10"));
+        if (marker != null) {
+            guardCounters(counters, marker);
+            bucket.append(LoaderCheckpoint.MARKER_FIELD, new Document("$literal", Collections.singletonList(marker)));
+        }
+
+        List<Document> pipeline = Arrays.asList(
+                new Document("$match", unbucketedInRange(fromId, toId)),
+                new Document("$group", new Document("_id", new Document("name", "$APP.NAME")
+                        .append("version", "$APP.VERSION")
+                        .append("build", "$APP.BUILD")
+                        .append("module", "$MODULE")
+                        .append("offset", "$OFFSET"))
+                        .append("APP", new Document("$first", "$APP"))
+                        .append("CRASH_COUNT", new Document("$sum", 1))
+                        .append("LAST_CRASH_DATE", new Document("$max", "$CRASHDATE"))),
+                // Same shape as createBucketDocument, minus the ID-derived fields
+                new Document("$project", bucket),
+                new Document("$merge", new Document("into", bucketCollection.getNamespace().getCollectionName())
+                        .append("on", BUCKET_KEY_FIELDS)
+                        .append("whenMatched", Collections.singletonList(new Document("$set", counters)))
+                        .append("whenNotMatched", "insert")));
+        long start = System.nanoTime();
+        crashPkgCollection.aggregate(pipeline).allowDiskUse(true).toCollection();
+        MERGE_TIMER.recordSince(start);
+    }
+
+    /**
+     * Step 2: give buckets inserted by step 1 consecutive IDs after the current maximum.
+     */
+    private int assignNewBucketIds() {
+        long pending = bucketCollection.countDocuments(Filters.exists("ID", false));
+        if (pending == 0) {
+            return 0;
+        }
+
+        Document last = bucketCollection.find(Filters.exists("ID")).projection(Projections.include("ID"))
+                .sort(Sorts.descending("ID")).first();
+        int nextId = last == null ? firstBucketId : Math.max(firstBucketId, last.getInteger("ID") + 1);
+
+        Document id = new Document("$add", Arrays.asList(nextId - 1, "$SEQ"));
+        List<Document> pipeline = Arrays.asList(
+                new Document("$match", new Document("ID", new Document("$exists", false))),
+                new Document("$setWindowFields", new Document("sortBy", new Document("_id", 1))
+                        .append("output", new Document("SEQ", new Document("$documentNumber", new Document())))),
+                new Document("$project", new Document("_id", 1)
+                        .append("ID", id)
+                        .append("MODULE_ID", new Document("$add", Arrays.asList(200, id)))
+                        .append("BUGNUM", new Document("$concat", Arrays.asList("ADBE-CR-", new Document("$toString", id))))
+                        .append("SOLUTION_URL", new Document("$concat",
+                                Arrays.asList("https://adobe.com/solution/", new Document("$toString", id))))
+                        .append("JIRA_ISSUE_IDS", new Document("$concat", Arrays.asList("ADBEJIRA-",
+                                new Document("$toString", new Document("$add", Arrays.asList(9000, id))))))),
+                new Document("$merge", new Document("into", bucketCollection.getNamespace().getCollectionName())
+                        .append("on", "_id")
+                        .append("whenMatched", "merge")
+                        .append("whenNotMatched", "discard")));
+        long start = System.nanoTime();
+        bucketCollection.aggregate(pipeline).toCollection();
+        MERGE_TIMER.recordSince(start);
+        return (int) pending;
+    }
+
+    /**
+     * Step 3: look up each unbucketed crash's bucket and write BUCKET_ID_ADOBE back.
+     */
+    private void backfillCrashBucketIds(int fromId, int toId) {
+        List<Document> pipeline = Arrays.asList(
+                new Document("$match", unbucketedInRange(fromId, toId)),
+                new Document("$lookup", new Document("from", bucketCollection.getNamespace().getCollectionName())
+                        .append("let", new Document("name", "$APP.NAME")
+                                .append("version", "$APP.VERSION")
+                                .append("build", "$APP.BUILD")
+                                .append("module", "$MODULE")
+                                .append("offset", "$OFFSET"))
+                        .append("pipeline", Arrays.asList(
+                                new Document("$match", new Document("$expr", new Document("$and", Arrays.asList(
+                                        new Document("$eq", Arrays.asList("$APP.NAME", "$$name")),
+                                        new Document("$eq", Arrays.asList("$APP.VERSION", "$$version")),
+                                        new Document("$eq", Arrays.asList("$APP.BUILD", "$$build")),
+                                        new Document("$eq", Arrays.asList("$MODULE_NAME", "$$module")),
+                                        new Document("$eq", Arrays.asList("$OFFSET", "$$offset")))))),
+                                new Document("$project", new Document("_id", 0).append("ID", 1))))
+                        .append("as", "BUCKET")),
+                new Document("$project", new Document("_id", 1)
+                        .append("BUCKET_ID_ADOBE", new Document("$arrayElemAt", Arrays.asList("$BUCKET.ID", 0)))),
+                new Document("$merge", new Document("into", crashPkgCollection.getNamespace().getCollectionName())
+                        .append("on", "_id")
+                        .append("whenMatched", "merge")
+                        .append("whenNotMatched", "discard")));
+        long start = System.nanoTime();
+        crashPkgCollection.aggregate(pipeline).toCollection();
+        MERGE_TIMER.recordSince(start);
+    }
+
+    /**
+     * Makes the counter updates of a matched bucket keep the current values if the bucket
+     * already holds {@code marker}, and record the marker otherwise, the way
+     * {@link LoaderCheckpoint#unlessCounted} and {@link LoaderCheckpoint#recordCounted} do for update operators.
+     */
+    private static void guardCounters(Document counters, String marker) {
+        String markers = "$" + LoaderCheckpoint.MARKER_FIELD;
+        Document heldMarkers = new Document("$ifNull", Arrays.asList(markers, Collections.emptyList()));
+        Document counted = new Document("$in", Arrays.asList(new Document("$literal", marker), heldMarkers));
+        for (Map.Entry<String, Object> counter : counters.entrySet()) {
+            counter.setValue(new Document("$cond", Arrays.asList(counted, "$" + counter.getKey(), counter.getValue())));
+        }
+        counters.append(LoaderCheckpoint.MARKER_FIELD, new Document("$cond", Arrays.asList(counted, markers,
+                new Document("$slice", Arrays.asList(new Document("$concatArrays", Arrays.asList(heldMarkers,
+                        new Document("$literal", Collections.singletonList(marker)))), -LoaderCheckpoint.MARKER_WINDOW)))));
+    }
+
+    private static Document unbucketedInRange(int fromId, int toId) {
+        return new Document("ID", new Document("$gte", fromId).append("$lte", toId))
+                .append("BUCKET_ID_ADOBE", new Document("$exists", false));
+    }
+
+    private void pauseBetweenChunks() {
+        if (chunkPauseMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(chunkPauseMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted between aggregation chunks", e);
+        }
+    }
+}
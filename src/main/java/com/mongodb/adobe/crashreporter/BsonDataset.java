@@ -0,0 +1,175 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.RawBsonDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A dataset file written by {@link BsonDatasetWriter}, memory-mapped for replay.
+ *
+ * Opening the file walks the document lengths once and records where every batch of
+ * {@code batchSize} documents starts. The file is mapped in windows of whole batches, at
+ * most {@value #MAX_WINDOW_BYTES} bytes each, since a single mapping cannot exceed 2 GB.
+ * {@link #batch} copies one batch out of its window with a single bulk get and returns
+ * {@link RawBsonDocument} slices of that copy, so a replayed document is never parsed or
+ * re-encoded. Safe for concurrent use by the pipeline's generator threads.
+ */
+class BsonDataset implements Closeable {
+
+    static final long MAX_WINDOW_BYTES = 1L << 30;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int batchSize;
+    private final int documentCount;
+    // Start of each batch, plus the end of the file
+    private final long[] batchOffsets;
+    private final MappedByteBuffer[] windows;
+    private final long[] windowOffsets;
+    private final int[] batchWindows;
+
+    private BsonDataset(Path file, FileChannel channel, int batchSize, int documentCount, long[] batchOffsets)
+            throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.documentCount = documentCount;
+        this.batchOffsets = batchOffsets;
+
+        int batchCount = batchOffsets.length - 1;
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        List<Long> mappedOffsets = new ArrayList<>();
+        this.batchWindows = new int[batchCount];
+        int firstBatch = 0;
+        while (firstBatch < batchCount) {
+            int lastBatch = firstBatch;
+            while (lastBatch + 1 < batchCount && batchOffsets[lastBatch + 2] - batchOffsets[firstBatch] <= MAX_WINDOW_BYTES) {
+                lastBatch++;
+            }
+            long windowBytes = batchOffsets[lastBatch + 1] - batchOffsets[firstBatch];
+            if (windowBytes > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Batch " + firstBatch + " of " + file + " is " + windowBytes +
+                        " bytes, too large to map; replay with a smaller crash.batchSize");
+            }
+            for (int b = firstBatch; b <= lastBatch; b++) {
+                batchWindows[b] = mapped.size();
+            }
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, batchOffsets[firstBatch], windowBytes));
+            mappedOffsets.add(batchOffsets[firstBatch]);
+            firstBatch = lastBatch + 1;
+        }
+        this.windows = mapped.toArray(new MappedByteBuffer[0]);
+        this.windowOffsets = new long[mappedOffsets.size()];
+        for (int w = 0; w < windowOffsets.length; w++) {
+            windowOffsets[w] = mappedOffsets.get(w);
+        }
+    }
+
+    /**
+     * Maps {@code file} and indexes it into batches of {@code batchSize} documents.
+     *
+     * @throws IllegalStateException if the file ends inside a document or its length
+     */
+    static BsonDataset open(Path file, int batchSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            List<Long> offsets = new ArrayList<>();
+            int documentCount = 0;
+            long position = 0;
+            // Scan the lengths window by window, remapping at the first document that crosses the end
+            while (position < size) {
+                long windowBytes = Math.min(MAX_WINDOW_BYTES, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowBytes);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                long windowStart = position;
+                while (position < size) {
+                    if (size - position < 4) {
+                        throw new IllegalStateException("Corrupt BSON dataset " + file + ": document " + documentCount +
+                                " at byte " + position + " is cut off after " + (size - position) + " bytes");
+                    }
+                    int relative = (int) (position - windowStart);
+                    if (relative + 4 > windowBytes) {
+                        break;
+                    }
+                    int length = window.getInt(relative);
+                    if (length < 5 || position + length > size) {
+                        throw new IllegalStateException("Corrupt BSON dataset " + file + ": document " + documentCount +
+                                " at byte " + position + " has length " + length);
+                    }
+                    if (relative + length > windowBytes) {
+                        break;
+                    }
+                    if (documentCount % batchSize == 0) {
+                        offsets.add(position);
+                    }
+                    documentCount++;
+                    position += length;
+                }
+            }
+            offsets.add(size);
+
+            long[] batchOffsets = new long[offsets.size()];
+            for (int i = 0; i < batchOffsets.length; i++) {
+                batchOffsets[i] = offsets.get(i);
+            }
+            return new BsonDataset(file, channel, batchSize, documentCount, batchOffsets);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int documentCount() {
+        return documentCount;
+    }
+
+    long byteCount() {
+        return batchOffsets[batchOffsets.length - 1];
+    }
+
+    /**
+     * Documents {@code batch * batchSize} up to the next batch boundary, as slices of one copied byte array.
+     */
+    List<RawBsonDocument> batch(int batch) {
+        int window = batchWindows[batch];
+        int length = (int) (batchOffsets[batch + 1] - batchOffsets[batch]);
+        byte[] bytes = new byte[length];
+        // A duplicate has its own position, so threads can copy from one window concurrently
+        ByteBuffer view = windows[window].duplicate();
+        // Through Buffer, whose position(int) also exists on Java 8
+        ((Buffer) view).position((int) (batchOffsets[batch] - windowOffsets[window]));
+        view.get(bytes);
+
+        List<RawBsonDocument> documents = new ArrayList<>(batchSize);
+        int offset = 0;
+        while (offset < length) {
+            int documentLength = (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                    | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+            documents.add(new RawBsonDocument(bytes, offset, documentLength));
+            offset += documentLength;
+        }
+        return documents;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file + " (" + documentCount + " documents, " + byteCount() / (1024 * 1024) + " MB, " +
+                windows.length + " mapped windows)";
+    }
+}
@@ -0,0 +1,84 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.RawBsonDocument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a dataset file for {@link BsonDataset}: BSON documents back to back, the format
+ * mongodump uses. Every document starts with its own int32 length, so the file needs no
+ * framing of its own.
+ *
+ * Batches may arrive in any order from the generator pipeline; they are buffered until
+ * every earlier batch is written, so the file always holds them in ID order.
+ */
+class BsonDatasetWriter implements Closeable {
+
+    private final Path file;
+    private final OutputStream out;
+    private final Map<Integer, List<RawBsonDocument>> waitingBatches = new HashMap<>();
+    private int nextBatch;
+    private long documentCount;
+    private long byteCount;
+
+    BsonDatasetWriter(Path file) throws IOException {
+        this.file = file;
+        this.out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20);
+    }
+
+    /**
+     * Adds batch {@code batchIndex}, writing it and any batches waiting on it once all earlier ones are in.
+     */
+    synchronized void write(int batchIndex, List<RawBsonDocument> documents) {
+        waitingBatches.put(batchIndex, documents);
+        try {
+            for (List<RawBsonDocument> batch; (batch = waitingBatches.remove(nextBatch)) != null; nextBatch++) {
+                for (RawBsonDocument document : batch) {
+                    write(document);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write " + file, e);
+        }
+    }
+
+    private void write(RawBsonDocument document) throws IOException {
+        ByteBuffer buffer = document.getByteBuffer().asNIO();
+        int size = buffer.remaining();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            out.write(copy);
+        }
+        documentCount++;
+        byteCount += size;
+    }
+
+    synchronized long documentCount() {
+        return documentCount;
+    }
+
+    synchronized long byteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        if (!waitingBatches.isEmpty()) {
+            throw new IllegalStateException(file + " is incomplete: batch " + nextBatch + " was never written");
+        }
+    }
+}
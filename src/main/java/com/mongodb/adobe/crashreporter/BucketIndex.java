@@ -0,0 +1,258 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory index of CRD_BUCKET_ADOBE keyed on the five bucketing dimensions.
+ *
+ * Existing buckets are read once through a projected cursor, so Phase 2 answers every
+ * bucket lookup from memory instead of querying the bucket collection per new key.
+ * New bucket IDs are allocated after the highest ID already in the collection.
+ *
+ * Keys are dictionary encoded: product, version, build and module each map to a 16-bit
+ * code, the four codes pack into one long that is interned as a dimension tuple ID, and
+ * the tuple ID plus OFFSET pack into the long key of a primitive long -> int map. A
+ * lookup for a crash document therefore allocates nothing.
+ *
+ * The index is safe for concurrent use. The maps are split into stripes chosen by the
+ * packed dimension codes, each guarded by its own lock, and
+ * {@link #lookupOrAllocate} checks and allocates under that lock so two threads can
+ * never create two buckets for the same key.
+ */
+class BucketIndex {
+
+    // Backs the one-bucket-per-key rule on the server side as well
+    static final Bson BUCKET_KEY_INDEX = Indexes.ascending(
+            "APP.NAME", "APP.VERSION", "APP.BUILD", "MODULE_NAME", "OFFSET");
+
+    private static final Bson BUCKET_KEY_PROJECTION = Projections.fields(
+            Projections.include("ID", "APP.NAME", "APP.VERSION", "APP.BUILD", "MODULE_NAME", "OFFSET"),
+            Projections.excludeId());
+
+    static final int NO_BUCKET = LongIntHashMap.NO_VALUE;
+
+    private static final int STRIPES = 64;
+
+    private static final LongAdder HITS = LoaderMetrics.counter("bucketIndex.hits");
+    private static final LongAdder MISSES = LoaderMetrics.counter("bucketIndex.misses");
+
+    private static final class Stripe {
+        // Packed (product, version, build, module) codes -> dimension tuple ID within the stripe
+        final LongIntHashMap tupleIds = new LongIntHashMap(64);
+        // Packed (dimension tuple ID, offset) -> bucket ID
+        final LongIntHashMap bucketIds = new LongIntHashMap(1024);
+    }
+
+    private final DimensionDictionary products = new DimensionDictionary("product");
+    private final DimensionDictionary versions = new DimensionDictionary("version");
+    private final DimensionDictionary builds = new DimensionDictionary("build");
+    private final DimensionDictionary modules = new DimensionDictionary("module");
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger bucketCount = new AtomicInteger();
+    private final AtomicInteger nextBucketId;
+
+    /**
+     * An empty index; {@link #load} builds one from the bucket collection.
+     */
+    BucketIndex(int firstBucketId) {
+        this.nextBucketId = new AtomicInteger(firstBucketId);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Ensures the unique bucket key index and the ID index exist and loads every existing bucket.
+     * Both are needed while the load runs, not only by queries afterwards: the key index keeps
+     * concurrent upserts to one bucket per key, and every counter update addresses its bucket
+     * by ID, which without the index is a collection scan per bucket.
+     *
+     * @param firstBucketId lowest ID handed out when the collection has no buckets yet
+     */
+    static BucketIndex load(MongoCollection<Document> bucketCollection, int firstBucketId) {
+        bucketCollection.createIndex(BUCKET_KEY_INDEX, new IndexOptions().unique(true));
+        // Counter updates address buckets by ID, so this cannot wait for the post-load indexes
+        bucketCollection.createIndex(Indexes.ascending("ID"));
+
+        BucketIndex index = new BucketIndex(firstBucketId);
+        try (MongoCursor<Document> cursor = bucketCollection.find()
+                .projection(BUCKET_KEY_PROJECTION)
+                .batchSize(10000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document bucketDoc = cursor.next();
+                Document appDoc = (Document) bucketDoc.get("APP");
+                Integer bucketId = bucketDoc.getInteger("ID");
+                Integer offset = bucketDoc.getInteger("OFFSET");
+                if (appDoc == null || bucketId == null || offset == null) {
+                    // Not a bucket Phase 2 could have produced, nothing to match against
+                    continue;
+                }
+
+                index.put(appDoc.getString("NAME"), appDoc.getString("VERSION"), appDoc.getString("BUILD"),
+                        bucketDoc.getString("MODULE_NAME"), offset, bucketId);
+                index.nextBucketId.accumulateAndGet(bucketId + 1, Math::max);
+            }
+        }
+
+        System.out.println("Loaded " + index.size() + " existing buckets, next bucket ID: " + index.nextBucketId.get());
+        System.out.println(index.heapStats());
+        return index;
+    }
+
+    /**
+     * Returns the bucket ID for the given dimensions, or {@link #NO_BUCKET} if no bucket
+     * exists for them yet. Allocation free, so it can run once per crash document.
+     */
+    int lookup(String product, String version, String build, String module, int offset) {
+        int bucketId = find(product, version, build, module, offset);
+        (bucketId == NO_BUCKET ? MISSES : HITS).increment();
+        return bucketId;
+    }
+
+    private int find(String product, String version, String build, String module, int offset) {
+        int productCode = products.find(product);
+        int versionCode = versions.find(version);
+        int buildCode = builds.find(build);
+        int moduleCode = modules.find(module);
+        if (productCode == DimensionDictionary.NO_CODE || versionCode == DimensionDictionary.NO_CODE
+                || buildCode == DimensionDictionary.NO_CODE || moduleCode == DimensionDictionary.NO_CODE) {
+            return NO_BUCKET;
+        }
+
+        long dimensions = packDimensions(productCode, versionCode, buildCode, moduleCode);
+        Stripe stripe = stripeFor(dimensions);
+        synchronized (stripe) {
+            int tupleId = stripe.tupleIds.get(dimensions);
+            if (tupleId == LongIntHashMap.NO_VALUE) {
+                return NO_BUCKET;
+            }
+            return stripe.bucketIds.get(packKey(tupleId, offset));
+        }
+    }
+
+    int lookup(BucketKey bucketKey) {
+        return lookup(bucketKey.getProduct(), bucketKey.getVersion(), bucketKey.getBuild(),
+                bucketKey.getModule(), bucketKey.getOffset());
+    }
+
+    /**
+     * Allocates a new bucket ID for dimensions that have no bucket yet.
+     */
+    int allocate(String product, String version, String build, String module, int offset) {
+        int bucketId = nextBucketId.getAndIncrement();
+        put(product, version, build, module, offset, bucketId);
+        return bucketId;
+    }
+
+    /**
+     * Returns the bucket ID for the given dimensions, allocating one if there is none.
+     * The check and the allocation are atomic, so concurrent callers with the same key
+     * always get the same bucket.
+     */
+    int lookupOrAllocate(String product, String version, String build, String module, int offset) {
+        long dimensions = packDimensions(products.intern(product), versions.intern(version),
+                builds.intern(build), modules.intern(module));
+        Stripe stripe = stripeFor(dimensions);
+        synchronized (stripe) {
+            long key = packKey(tupleId(stripe, dimensions), offset);
+            int bucketId = stripe.bucketIds.get(key);
+            if (bucketId == LongIntHashMap.NO_VALUE) {
+                bucketId = nextBucketId.getAndIncrement();
+                stripe.bucketIds.put(key, bucketId);
+                bucketCount.incrementAndGet();
+                MISSES.increment();
+            } else {
+                HITS.increment();
+            }
+            return bucketId;
+        }
+    }
+
+    /**
+     * Points the dimensions at {@code bucketId}, a bucket another writer created for them,
+     * and keeps IDs handed out from now on above it.
+     */
+    void remap(String product, String version, String build, String module, int offset, int bucketId) {
+        put(product, version, build, module, offset, bucketId);
+        nextBucketId.accumulateAndGet(bucketId + 1, Math::max);
+    }
+
+    int size() {
+        return bucketCount.get();
+    }
+
+    /**
+     * Highest bucket ID handed out or loaded so far.
+     */
+    int maxBucketId() {
+        return nextBucketId.get() - 1;
+    }
+
+    /**
+     * One-line summary of the index size and its estimated heap footprint.
+     */
+    String heapStats() {
+        long tableBytes = 0;
+        int tupleCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                tableBytes += stripe.tupleIds.tableBytes() + stripe.bucketIds.tableBytes();
+                tupleCount += stripe.tupleIds.size();
+            }
+        }
+        long dictionaryBytes = products.estimatedBytes() + versions.estimatedBytes()
+                + builds.estimatedBytes() + modules.estimatedBytes();
+        return "Bucket index: " + size() + " buckets, " + tupleCount + " dimension tuples" +
+                " (" + products.size() + " products, " + versions.size() + " versions, " +
+                builds.size() + " builds, " + modules.size() + " modules)" +
+                " - ~" + ((tableBytes + dictionaryBytes) / 1024) + " KB heap" +
+                " (tables " + (tableBytes / 1024) + " KB, dictionaries " + (dictionaryBytes / 1024) + " KB)";
+    }
+
+    private void put(String product, String version, String build, String module, int offset, int bucketId) {
+        long dimensions = packDimensions(products.intern(product), versions.intern(version),
+                builds.intern(build), modules.intern(module));
+        Stripe stripe = stripeFor(dimensions);
+        synchronized (stripe) {
+            long key = packKey(tupleId(stripe, dimensions), offset);
+            if (stripe.bucketIds.get(key) == LongIntHashMap.NO_VALUE) {
+                bucketCount.incrementAndGet();
+            }
+            stripe.bucketIds.put(key, bucketId);
+        }
+    }
+
+    // Caller holds the stripe lock
+    private static int tupleId(Stripe stripe, long dimensions) {
+        int tupleId = stripe.tupleIds.get(dimensions);
+        if (tupleId == LongIntHashMap.NO_VALUE) {
+            tupleId = stripe.tupleIds.size();
+            stripe.tupleIds.put(dimensions, tupleId);
+        }
+        return tupleId;
+    }
+
+    private Stripe stripeFor(long dimensions) {
+        return stripes[(int) ((dimensions * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1)];
+    }
+
+    private static long packDimensions(int productCode, int versionCode, int buildCode, int moduleCode) {
+        return ((long) productCode << 48) | ((long) versionCode << 32) | ((long) buildCode << 16) | moduleCode;
+    }
+
+    private static long packKey(int tupleId, int offset) {
+        return ((long) tupleId << 32) | (offset & 0xFFFFFFFFL);
+    }
+}
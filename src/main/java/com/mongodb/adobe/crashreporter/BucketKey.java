@@ -0,0 +1,68 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.util.Objects;
+
+class BucketKey {
+    private final String product;
+    private final String version;
+    private final String build;
+    private final String module;
+    private final int offset;
+
+    public BucketKey(String product, String version, String build, String module, int offset) {
+        this.product = product;
+        this.version = version;
+        this.build = build;
+        this.module = module;
+        this.offset = offset;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getBuild() {
+        return build;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BucketKey bucketKey = (BucketKey) o;
+        return offset == bucketKey.offset &&
+               Objects.equals(product, bucketKey.product) &&
+               Objects.equals(version, bucketKey.version) &&
+               Objects.equals(build, bucketKey.build) &&
+               Objects.equals(module, bucketKey.module);
+    }
+
+    @Override
+    public int hashCode() {
+        // Same value as Objects.hash, without the varargs array and boxed offset
+        int result = 1;
+        result = 31 * result + Objects.hashCode(product);
+        result = 31 * result + Objects.hashCode(version);
+        result = 31 * result + Objects.hashCode(build);
+        result = 31 * result + Objects.hashCode(module);
+        result = 31 * result + offset;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return product + "_" + version + "_" + build + "_" + module + "_" + offset;
+    }
+}
@@ -0,0 +1,309 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Batched write stage for Phase 2 bucketing.
+ *
+ * Bucket assignments and bucket counter updates are collected for a whole batch of
+ * crashes and sent as one unordered bulkWrite per collection: crash packages are
+ * grouped per bucket into a single updateMany on ID $in, and repeat hits on a bucket
+ * are coalesced into one $inc. A batch of 1000 crashes therefore costs two round trips
+ * instead of up to 2000.
+ *
+ * With a {@link ReactiveWriteBackend} a flush only starts the writes, and the caller goes on
+ * to the next batch while they run. Bucket writes stay in batch order, since a later batch
+ * may $inc a bucket an earlier one inserts; crash updates only wait for their own batch's
+ * bucket writes. {@link #awaitWrites()} waits for everything this stage started.
+ *
+ * With a {@link CrashRollupStage}, crashes counted through {@link #countRollup} also update
+ * the hourly rollups, in one more bulkWrite per batch.
+ */
+class BucketWriteStage {
+
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+    private static final LoaderMetrics.Stat BUCKET_WRITE_TIMER = LoaderMetrics.timer("mongo.bulkWrite.buckets");
+    private static final LoaderMetrics.Stat CRASH_WRITE_TIMER = LoaderMetrics.timer("mongo.bulkWrite.crashUpdates");
+    private static final LoaderMetrics.Stat BUCKET_OPS = LoaderMetrics.distribution("batch.bucketOps");
+    private static final LoaderMetrics.Stat CRASH_OPS = LoaderMetrics.distribution("batch.crashUpdateOps");
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+
+    // Bucket ID -> crash package IDs assigned to it in the current batch
+    private final Map<Integer, List<Integer>> assignments = new LinkedHashMap<>();
+    // Buckets created in the current batch; repeat hits are folded into their counters
+    private final Map<Integer, Document> newBuckets = new LinkedHashMap<>();
+    // Bucket ID -> crash count delta for buckets that already exist in the database
+    private final Map<Integer, Integer> crashCountDeltas = new LinkedHashMap<>();
+
+    private int pendingWrites = 0;
+
+    // Only set when the hourly rollups are maintained
+    private final CrashRollupStage rollups;
+    private final CrashRollupStage.Deltas rollupDeltas = new CrashRollupStage.Deltas();
+
+    // Only set on the asynchronous path
+    private final ReactiveWriteBackend asyncWrites;
+    private final com.mongodb.reactivestreams.client.MongoCollection<Document> asyncCrashPkgCollection;
+    private final com.mongodb.reactivestreams.client.MongoCollection<Document> asyncBucketCollection;
+    private final com.mongodb.reactivestreams.client.MongoCollection<Document> asyncRollupCollection;
+    private final List<CompletableFuture<Void>> inFlightWrites = new ArrayList<>();
+    private CompletableFuture<Void> lastBucketWrite;
+    private CompletableFuture<Void> lastRollupWrite;
+
+    // Running totals for the summary line
+    private int flushCount = 0;
+    private long totalWrites = 0;
+    private long totalBulkOps = 0;
+    private long totalNanos = 0;
+
+    BucketWriteStage(MongoCollection<Document> crashPkgCollection, MongoCollection<Document> bucketCollection) {
+        this(crashPkgCollection, bucketCollection, null);
+    }
+
+    /**
+     * A stage that flushes through {@code asyncWrites}, or synchronously if it is null.
+     */
+    BucketWriteStage(MongoCollection<Document> crashPkgCollection, MongoCollection<Document> bucketCollection,
+                     ReactiveWriteBackend asyncWrites) {
+        this(crashPkgCollection, bucketCollection, asyncWrites, null);
+    }
+
+    /**
+     * A stage that also writes the hourly rollups through {@code rollups}, unless it is null.
+     */
+    BucketWriteStage(MongoCollection<Document> crashPkgCollection, MongoCollection<Document> bucketCollection,
+                     ReactiveWriteBackend asyncWrites, CrashRollupStage rollups) {
+        this.crashPkgCollection = crashPkgCollection;
+        this.bucketCollection = bucketCollection;
+        this.asyncWrites = asyncWrites;
+        this.rollups = rollups;
+        this.asyncCrashPkgCollection = asyncWrites == null ? null
+                : asyncWrites.collection(crashPkgCollection.getNamespace().getCollectionName(), Document.class);
+        this.asyncBucketCollection = asyncWrites == null ? null
+                : asyncWrites.collection(bucketCollection.getNamespace().getCollectionName(), Document.class);
+        this.asyncRollupCollection = asyncWrites == null || rollups == null ? null
+                : asyncWrites.collection(CrashRollupStage.COLLECTION, Document.class);
+    }
+
+    /**
+     * Stages the insert of a bucket created for the current batch.
+     */
+    void createBucket(Document bucketDoc) {
+        newBuckets.put(bucketDoc.getInteger("ID"), bucketDoc);
+        pendingWrites++;
+    }
+
+    /**
+     * Stages one more crash for an existing bucket.
+     */
+    void incrementBucket(int bucketId) {
+        Document pending = newBuckets.get(bucketId);
+        if (pending != null) {
+            // Not inserted yet, so count the crash in the document itself
+            pending.put("CRASH_COUNT", pending.getInteger("CRASH_COUNT") + 1);
+            pending.put("UNIQUE_CRASH_USER_STEPS_COUNT", pending.getInteger("UNIQUE_CRASH_USER_STEPS_COUNT") + 1);
+            pending.put("LAST_CRASH_DATE", new Date());
+        } else {
+            crashCountDeltas.merge(bucketId, 1, Integer::sum);
+        }
+        pendingWrites++;
+    }
+
+    /**
+     * Stages setting BUCKET_ID_ADOBE on a crash package.
+     */
+    void assign(int crashId, int bucketId) {
+        assignments.computeIfAbsent(bucketId, id -> new ArrayList<>()).add(crashId);
+        pendingWrites++;
+    }
+
+    /**
+     * Counts a crash of the current batch in the hourly rollups; a no-op without a rollup stage.
+     */
+    void countRollup(int bucketId, Document appDoc, Date crashDate) {
+        if (rollups != null && crashDate != null) {
+            rollupDeltas.count(bucketId, appDoc, crashDate);
+        }
+    }
+
+    /**
+     * Sends everything staged for the current batch and reports its latency.
+     */
+    void flush() {
+        flush(null);
+    }
+
+    /**
+     * Like {@link #flush()}, but tags the bucket counter updates with batch {@code marker}
+     * so that replaying the batch after a resume does not count its crashes twice.
+     */
+    void flush(String marker) {
+        if (pendingWrites == 0) {
+            return;
+        }
+
+        List<WriteModel<Document>> bucketOps = new ArrayList<>(newBuckets.size() + crashCountDeltas.size());
+        for (Document bucketDoc : newBuckets.values()) {
+            if (marker != null) {
+                bucketDoc.append(LoaderCheckpoint.MARKER_FIELD, Collections.singletonList(marker));
+            }
+            bucketOps.add(new InsertOneModel<>(bucketDoc));
+        }
+        Date lastCrashDate = new Date();
+        for (Map.Entry<Integer, Integer> delta : crashCountDeltas.entrySet()) {
+            bucketOps.add(new UpdateOneModel<>(
+                    LoaderCheckpoint.unlessCounted(Filters.eq("ID", delta.getKey()), marker),
+                    LoaderCheckpoint.recordCounted(Updates.combine(
+                            Updates.inc("CRASH_COUNT", delta.getValue()),
+                            Updates.inc("UNIQUE_CRASH_USER_STEPS_COUNT", delta.getValue()),
+                            Updates.set("LAST_CRASH_DATE", lastCrashDate)), marker)));
+        }
+
+        List<WriteModel<Document>> crashOps = new ArrayList<>(assignments.size());
+        for (Map.Entry<Integer, List<Integer>> assignment : assignments.entrySet()) {
+            List<Integer> crashIds = assignment.getValue();
+            if (crashIds.size() == 1) {
+                crashOps.add(new UpdateOneModel<>(Filters.eq("ID", crashIds.get(0)),
+                        Updates.set("BUCKET_ID_ADOBE", assignment.getKey())));
+            } else {
+                crashOps.add(new UpdateManyModel<>(Filters.in("ID", crashIds),
+                        Updates.set("BUCKET_ID_ADOBE", assignment.getKey())));
+            }
+        }
+
+        List<WriteModel<Document>> rollupOps = rollups == null ? Collections.emptyList()
+                : rollups.upserts(rollupDeltas, marker);
+
+        long start = System.nanoTime();
+        if (asyncWrites != null) {
+            startWrites(bucketOps, crashOps, rollupOps, marker != null);
+        } else {
+            // Buckets first, so a crash never points at a bucket that failed to insert
+            if (!bucketOps.isEmpty()) {
+                bucketCollection.bulkWrite(bucketOps, UNORDERED);
+                BUCKET_WRITE_TIMER.recordSince(start);
+            }
+            if (!crashOps.isEmpty()) {
+                long crashStart = System.nanoTime();
+                crashPkgCollection.bulkWrite(crashOps, UNORDERED);
+                CRASH_WRITE_TIMER.recordSince(crashStart);
+            }
+            if (!rollupOps.isEmpty()) {
+                rollups.write(rollupOps, marker != null);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        if (!bucketOps.isEmpty()) {
+            BUCKET_OPS.record(bucketOps.size());
+        }
+        if (!crashOps.isEmpty()) {
+            CRASH_OPS.record(crashOps.size());
+        }
+
+        int bulkOps = bucketOps.size() + crashOps.size() + rollupOps.size();
+        flushCount++;
+        totalWrites += pendingWrites;
+        totalBulkOps += bulkOps;
+        totalNanos += elapsedNanos;
+
+        System.out.println("  Bulk write #" + flushCount +
+                " - " + pendingWrites + " writes as " + bulkOps + " bulk ops" +
+                (asyncWrites == null ? " in " : " started in ") + (elapsedNanos / 1_000_000) + " ms" +
+                " (" + opsPerSecond(pendingWrites, elapsedNanos) + " writes/sec)");
+
+        assignments.clear();
+        newBuckets.clear();
+        crashCountDeltas.clear();
+        rollupDeltas.clear();
+        pendingWrites = 0;
+    }
+
+    // Buckets first, so a crash never points at a bucket that failed to insert
+    private void startWrites(List<WriteModel<Document>> bucketOps, List<WriteModel<Document>> crashOps,
+                             List<WriteModel<Document>> rollupOps, boolean marked) {
+        checkCompletedWrites();
+        if (!bucketOps.isEmpty()) {
+            lastBucketWrite = asyncWrites.bulkWrite(asyncBucketCollection, bucketOps, UNORDERED, lastBucketWrite);
+            inFlightWrites.add(lastBucketWrite);
+        }
+        if (!crashOps.isEmpty()) {
+            inFlightWrites.add(asyncWrites.bulkWrite(asyncCrashPkgCollection, crashOps, UNORDERED, lastBucketWrite));
+        }
+        if (!rollupOps.isEmpty()) {
+            // Chained like the bucket writes, so two batches never race to insert the same rollup
+            lastRollupWrite = asyncWrites.bulkWrite(asyncRollupCollection, rollupOps, UNORDERED, lastRollupWrite);
+            if (marked) {
+                lastRollupWrite = lastRollupWrite.exceptionally(CrashRollupStage::skipCounted);
+            }
+            inFlightWrites.add(lastRollupWrite);
+        }
+    }
+
+    // Drops finished writes, rethrowing the failure of any that failed
+    private void checkCompletedWrites() {
+        Iterator<CompletableFuture<Void>> writes = inFlightWrites.iterator();
+        while (writes.hasNext()) {
+            CompletableFuture<Void> write = writes.next();
+            if (write.isDone()) {
+                join(write);
+                writes.remove();
+            }
+        }
+    }
+
+    /**
+     * Waits for every write this stage started; a no-op on the synchronous path.
+     */
+    void awaitWrites() {
+        for (CompletableFuture<Void> write : inFlightWrites) {
+            join(write);
+        }
+        inFlightWrites.clear();
+    }
+
+    private static void join(CompletableFuture<Void> write) {
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Prints totals across all flushed batches.
+     */
+    void printSummary() {
+        System.out.println("Bulk write stage: " + flushCount + " batches, " +
+                totalWrites + " writes as " + totalBulkOps + " bulk ops" +
+                " in " + (totalNanos / 1_000_000) + " ms" +
+                " (" + opsPerSecond(totalWrites, totalNanos) + " writes/sec)");
+    }
+
+    private static long opsPerSecond(long ops, long nanos) {
+        return nanos == 0 ? 0 : ops * 1_000_000_000L / nanos;
+    }
+}
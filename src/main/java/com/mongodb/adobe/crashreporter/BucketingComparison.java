@@ -0,0 +1,91 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs several bucketing engines over the same CRD_CRASH_PKG data and compares their
+ * run time and results.
+ *
+ * Before each engine all bucket assignments are removed and CRD_BUCKET_ADOBE is dropped,
+ * so every engine re-buckets the full collection from scratch. This is destructive and
+ * meant for test databases only.
+ */
+class BucketingComparison {
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+
+    BucketingComparison(MongoDatabase db) {
+        this.crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+        this.bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+    }
+
+    /**
+     * Runs each engine in turn and prints one result line per engine.
+     */
+    void run(Map<String, Runnable> engines) {
+        System.out.println("Comparing bucketing engines over " + crashPkgCollection.countDocuments() +
+                " crash documents (bucket assignments are reset before each run)");
+
+        Map<String, Map<String, Integer>> countsByEngine = new LinkedHashMap<>();
+        Map<String, Long> millisByEngine = new LinkedHashMap<>();
+        for (Map.Entry<String, Runnable> engine : engines.entrySet()) {
+            reset();
+            System.out.println("\n--- " + engine.getKey() + " ---");
+            long start = System.nanoTime();
+            engine.getValue().run();
+            millisByEngine.put(engine.getKey(), (System.nanoTime() - start) / 1_000_000);
+            countsByEngine.put(engine.getKey(), crashCountsByBucketKey());
+        }
+
+        System.out.println("\nBucketing comparison:");
+        Map<String, Integer> reference = null;
+        for (String engine : engines.keySet()) {
+            Map<String, Integer> counts = countsByEngine.get(engine);
+            long crashes = 0;
+            for (int count : counts.values()) {
+                crashes += count;
+            }
+            if (reference == null) {
+                reference = counts;
+            }
+            System.out.println("  " + engine + ": " + millisByEngine.get(engine) + " ms, " +
+                    counts.size() + " buckets, " + crashes + " crashes counted" +
+                    (counts.equals(reference) ? "" : " - DIFFERS from " + engines.keySet().iterator().next()));
+        }
+    }
+
+    private void reset() {
+        crashPkgCollection.updateMany(Filters.exists("BUCKET_ID_ADOBE"), Updates.unset("BUCKET_ID_ADOBE"));
+        bucketCollection.drop();
+    }
+
+    // Bucket key -> CRASH_COUNT, which is independent of the IDs each engine hands out
+    private Map<String, Integer> crashCountsByBucketKey() {
+        Map<String, Integer> counts = new HashMap<>();
+        try (MongoCursor<Document> cursor = bucketCollection.find()
+                .projection(Projections.include("APP.NAME", "APP.VERSION", "APP.BUILD",
+                        "MODULE_NAME", "OFFSET", "CRASH_COUNT"))
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document bucketDoc = cursor.next();
+                Document appDoc = (Document) bucketDoc.get("APP");
+                BucketKey bucketKey = new BucketKey(appDoc.getString("NAME"), appDoc.getString("VERSION"),
+                        appDoc.getString("BUILD"), bucketDoc.getString("MODULE_NAME"), bucketDoc.getInteger("OFFSET"));
+                counts.put(bucketKey.toString(), bucketDoc.getInteger("CRASH_COUNT"));
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,241 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous bucketing of new crash packages from a change stream on CRD_CRASH_PKG.
+ *
+ * Inserts without a BUCKET_ID_ADOBE are collected into micro-batches, closed at
+ * {@code batchSize} crashes or once the oldest one has waited {@code maxWaitMillis}, and
+ * bucketed the way the parallel Phase 2 engine does it: {@link IngestBucketer} upserts the
+ * bucket counters (and the hourly rollups, if enabled) and a {@link BucketWriteStage}
+ * assigns the crashes. Change streams need a replica set; a single node one is enough.
+ *
+ * Progress is kept in LOADER_STATE under {@code changeStream:<streamId>}. Before a batch is
+ * written, its crash IDs, batch marker and the resume token after its last event are saved
+ * as PENDING; once written, the token becomes RESUME_TOKEN. A restart first replays a
+ * pending batch by crash ID with the same marker, so its counters are applied exactly once,
+ * and then resumes the stream after its token.
+ */
+class ChangeStreamBucketer {
+
+    private static final LoaderMetrics.Stat BATCH_LATENCY = LoaderMetrics.timer("stream.batchLatency");
+    private static final LoaderMetrics.Stat BATCH_CRASHES = LoaderMetrics.distribution("stream.batchCrashes");
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+    // The oplog no longer holds the resume point
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+    private final MongoCollection<Document> stateCollection;
+    private final String stateId;
+    private final int batchSize;
+    private final long maxWaitMillis;
+    private final int firstBucketId;
+    private final IngestBucketer.BucketDocumentFactory bucketDocumentFactory;
+    private final CrashRollupStage rollups;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = true;
+    private long batchSequence;
+    private long streamedCount;
+
+    ChangeStreamBucketer(MongoDatabase db, String streamId, int batchSize, long maxWaitMillis, int firstBucketId,
+                         IngestBucketer.BucketDocumentFactory bucketDocumentFactory, CrashRollupStage rollups) {
+        this.crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+        this.bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+        this.stateCollection = db.getCollection("LOADER_STATE");
+        this.stateId = "changeStream:" + streamId;
+        this.batchSize = batchSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.firstBucketId = firstBucketId;
+        this.bucketDocumentFactory = bucketDocumentFactory;
+        this.rollups = rollups;
+    }
+
+    /**
+     * Buckets new crashes until {@link #stop()} is called; the open micro-batch is written before returning.
+     */
+    void run() {
+        try {
+            crashPkgCollection.createIndex(Indexes.ascending("ID"));
+            if (rollups != null) {
+                rollups.createIndexes();
+            }
+            IngestBucketer bucketer = new IngestBucketer(BucketIndex.load(bucketCollection, firstBucketId),
+                    bucketCollection, bucketDocumentFactory, rollups);
+
+            Document state = stateCollection.find(Filters.eq("_id", stateId)).first();
+            BsonDocument resumeToken = null;
+            if (state != null) {
+                Long sequence = state.getLong("BATCH_SEQUENCE");
+                batchSequence = sequence == null ? 0 : sequence;
+                resumeToken = token(state.get("RESUME_TOKEN"));
+                Document pending = (Document) state.get("PENDING");
+                if (pending != null) {
+                    resumeToken = replayPending(bucketer, pending);
+                }
+            }
+
+            ChangeStreamIterable<Document> stream = crashPkgCollection.watch(Arrays.asList(
+                    Aggregates.match(Filters.and(Filters.eq("operationType", "insert"),
+                            Filters.exists("fullDocument.BUCKET_ID_ADOBE", false))),
+                    Aggregates.project(Projections.include("operationType", "fullDocument.ID",
+                            "fullDocument.MODULE", "fullDocument.OFFSET", "fullDocument.CRASHDATE",
+                            "fullDocument.APP.APP_ID", "fullDocument.APP.NAME",
+                            "fullDocument.APP.VERSION", "fullDocument.APP.BUILD"))))
+                    .batchSize(batchSize)
+                    .maxAwaitTime(maxWaitMillis, TimeUnit.MILLISECONDS);
+            if (resumeToken != null) {
+                stream = stream.resumeAfter(resumeToken);
+                System.out.println("Resuming change stream '" + stateId + "' after batch " + batchSequence);
+            } else {
+                System.out.println("Starting change stream '" + stateId + "' at the current time");
+            }
+
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+                stream(bucketer, cursor);
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST) {
+                    throw new IllegalStateException("Change stream '" + stateId + "' cannot resume, its position " +
+                            "is no longer in the oplog. Catch up with crash.mode=rebucket and start a new crash.streamId.", e);
+                }
+                throw e;
+            }
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Asks {@link #run()} to write its open micro-batch and return, and waits for it to do so.
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        stopped.await(maxWaitMillis + TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+    }
+
+    private void stream(IngestBucketer bucketer, MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        List<Document> crashes = new ArrayList<>(batchSize);
+        long oldestEventNanos = 0;
+        while (running) {
+            // Returns null once a getMore has waited maxAwaitTime without new events
+            ChangeStreamDocument<Document> event = cursor.tryNext();
+            if (event != null && event.getFullDocument() != null) {
+                if (crashes.isEmpty()) {
+                    oldestEventNanos = System.nanoTime();
+                }
+                crashes.add(event.getFullDocument());
+            }
+            boolean full = crashes.size() >= batchSize;
+            boolean due = !crashes.isEmpty()
+                    && System.nanoTime() - oldestEventNanos >= TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            if (full || due) {
+                writeBatch(bucketer, crashes, cursor.getResumeToken(), oldestEventNanos);
+                crashes = new ArrayList<>(batchSize);
+            }
+        }
+        if (!crashes.isEmpty()) {
+            writeBatch(bucketer, crashes, cursor.getResumeToken(), oldestEventNanos);
+        }
+    }
+
+    private void writeBatch(IngestBucketer bucketer, List<Document> crashes, BsonDocument resumeToken,
+                            long oldestEventNanos) {
+        batchSequence++;
+        String marker = stateId + ":" + batchSequence;
+        List<Integer> crashIds = new ArrayList<>(crashes.size());
+        for (Document crashDoc : crashes) {
+            crashIds.add(crashDoc.getInteger("ID"));
+        }
+        saveState(Updates.combine(
+                Updates.set("BATCH_SEQUENCE", batchSequence),
+                Updates.set("PENDING", new Document("MARKER", marker).append("CRASH_IDS", crashIds)
+                        .append("RESUME_TOKEN", resumeToken))));
+
+        bucket(bucketer, crashes, marker);
+
+        saveState(Updates.combine(Updates.set("RESUME_TOKEN", resumeToken), Updates.unset("PENDING")));
+        BATCH_LATENCY.recordSince(oldestEventNanos);
+        BATCH_CRASHES.record(crashes.size());
+        streamedCount += crashes.size();
+        System.out.println("Stream batch #" + batchSequence + ": bucketed " + crashes.size() + " crashes " +
+                (System.nanoTime() - oldestEventNanos) / 1_000_000 + " ms after the first arrived" +
+                " - Total: " + streamedCount);
+    }
+
+    /**
+     * Writes the batch a previous run saved as pending but may not have finished, and
+     * returns the resume token that follows it.
+     */
+    private BsonDocument replayPending(IngestBucketer bucketer, Document pending) {
+        List<Integer> crashIds = pending.getList("CRASH_IDS", Integer.class);
+        System.out.println("Replaying " + crashIds.size() + " crashes of interrupted stream batch " + batchSequence);
+        List<Document> crashes = crashPkgCollection.find(Filters.in("ID", crashIds))
+                .projection(CrashReporterDataLoaderV2.BUCKETING_PROJECTION)
+                .into(new ArrayList<>(crashIds.size()));
+        bucket(bucketer, crashes, pending.getString("MARKER"));
+
+        BsonDocument resumeToken = token(pending.get("RESUME_TOKEN"));
+        saveState(Updates.combine(Updates.set("RESUME_TOKEN", resumeToken), Updates.unset("PENDING")));
+        return resumeToken;
+    }
+
+    // Buckets first, so a crash never points at a bucket that does not exist yet, and the
+    // crashes go to the IDs the bucket write settled on, if another writer had created some keys
+    private void bucket(IngestBucketer bucketer, List<Document> crashes, String marker) {
+        if (crashes.isEmpty()) {
+            return;
+        }
+        IngestBucketer.Batch<Document> batch = new IngestBucketer.Batch<>(crashes.get(0).getInteger("ID"), crashes.size());
+        batch.marker = marker;
+        int[] bucketIds = new int[crashes.size()];
+        for (int i = 0; i < crashes.size(); i++) {
+            Document crashDoc = crashes.get(i);
+            Date crashDate = crashDoc.getDate("CRASHDATE");
+            bucketIds[i] = bucketer.assign(batch, (Document) crashDoc.get("APP"),
+                    crashDoc.getString("MODULE"), crashDoc.getInteger("OFFSET"),
+                    crashDate == null ? new Date() : crashDate);
+        }
+        Map<Integer, Integer> remapped = bucketer.writeBuckets(batch);
+
+        BucketWriteStage writeStage = new BucketWriteStage(crashPkgCollection, bucketCollection);
+        for (int i = 0; i < crashes.size(); i++) {
+            writeStage.assign(crashes.get(i).getInteger("ID"), remapped.getOrDefault(bucketIds[i], bucketIds[i]));
+        }
+        writeStage.flush();
+    }
+
+    private void saveState(Bson update) {
+        stateCollection.updateOne(Filters.eq("_id", stateId),
+                Updates.combine(update, Updates.set("UPDATED", new Date())), UPSERT);
+    }
+
+    // Tokens are stored as sub-documents and read back through the Document codec
+    private static BsonDocument token(Object storedToken) {
+        return storedToken == null ? null : ((Document) storedToken).toBsonDocument();
+    }
+}
@@ -0,0 +1,141 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.BsonBinary;
+import org.bson.BsonType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+/**
+ * Prebuilt CLOB payloads, keyed by field template, app name and payload size class.
+ *
+ * A CLOB only depends on its template, the app and its size, so each one is built once
+ * and the same immutable value is shared by every crash package instead of rebuilding a
+ * 50 KB string per field per document. The binary form holds the UTF-8 bytes already encoded,
+ * so the driver copies them into the outgoing message without encoding the text again,
+ * and the compressed encodings compress each CLOB once rather than once per document.
+ * The element form goes one step further and holds the complete BSON element (type,
+ * field name, length and value) for writers that assemble documents byte by byte.
+ */
+class ClobCache {
+
+    private final BiFunction<String, Integer, String> clobBuilder;
+    // Field -> app -> payload per size class
+    private final Map<ClobField, ConcurrentHashMap<String, AtomicReferenceArray<String>>> strings = new EnumMap<>(ClobField.class);
+    // Encoding -> field -> app -> payload per size class
+    private final Map<ClobEncoding, Map<ClobField, ConcurrentHashMap<String, AtomicReferenceArray<BsonBinary>>>> binaries = new EnumMap<>(ClobEncoding.class);
+    private final Map<ClobEncoding, Map<ClobField, ConcurrentHashMap<String, AtomicReferenceArray<byte[]>>>> elements = new EnumMap<>(ClobEncoding.class);
+
+    /**
+     * @param clobBuilder expands a template's base text into a CLOB of the given UTF-8 size
+     */
+    ClobCache(BiFunction<String, Integer, String> clobBuilder) {
+        this.clobBuilder = clobBuilder;
+        for (ClobField field : ClobField.values()) {
+            strings.put(field, new ConcurrentHashMap<>());
+        }
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            binaries.put(encoding, perField());
+            elements.put(encoding, perField());
+        }
+    }
+
+    private static <V> Map<ClobField, ConcurrentHashMap<String, AtomicReferenceArray<V>>> perField() {
+        Map<ClobField, ConcurrentHashMap<String, AtomicReferenceArray<V>>> byField = new EnumMap<>(ClobField.class);
+        for (ClobField field : ClobField.values()) {
+            byField.put(field, new ConcurrentHashMap<>());
+        }
+        return byField;
+    }
+
+    /**
+     * Returns the shared CLOB text for {@code field} in {@code appName}.
+     *
+     * @param sizeClass payload size class, see {@link PayloadSizeModel#classBytes(int)}
+     */
+    String string(ClobField field, String appName, int sizeClass) {
+        AtomicReferenceArray<String> bySize = strings.get(field)
+                .computeIfAbsent(appName, app -> new AtomicReferenceArray<>(PayloadSizeModel.SIZE_CLASSES));
+        String clob = bySize.get(sizeClass);
+        if (clob == null) {
+            // Two threads may both build it, either copy is fine to keep
+            clob = clobBuilder.apply(field.base(appName), PayloadSizeModel.classBytes(sizeClass));
+            bySize.compareAndSet(sizeClass, null, clob);
+        }
+        return clob;
+    }
+
+    /**
+     * Returns the shared CLOB as pre-encoded UTF-8 bytes.
+     */
+    BsonBinary binary(ClobField field, String appName, int sizeClass) {
+        return binary(field, appName, sizeClass, ClobEncoding.BINARY);
+    }
+
+    /**
+     * Returns the shared CLOB in one of the binary encodings, see {@link ClobEncoding#encode}.
+     */
+    BsonBinary binary(ClobField field, String appName, int sizeClass, ClobEncoding encoding) {
+        AtomicReferenceArray<BsonBinary> bySize = binaries.get(encoding).get(field)
+                .computeIfAbsent(appName, app -> new AtomicReferenceArray<>(PayloadSizeModel.SIZE_CLASSES));
+        BsonBinary clob = bySize.get(sizeClass);
+        if (clob == null) {
+            clob = encoding.encode(string(field, appName, sizeClass));
+            bySize.compareAndSet(sizeClass, null, clob);
+        }
+        return clob;
+    }
+
+    /**
+     * Returns the shared CLOB as a field value in {@code encoding}: a String or a BsonBinary.
+     */
+    Object value(ClobField field, String appName, int sizeClass, ClobEncoding encoding) {
+        return encoding.isBinary() ? binary(field, appName, sizeClass, encoding) : string(field, appName, sizeClass);
+    }
+
+    /**
+     * Bytes the CLOB value takes up in a document in {@code encoding}, without the element header.
+     */
+    int storedBytes(ClobField field, String appName, int sizeClass, ClobEncoding encoding) {
+        return encoding.isBinary() ? binary(field, appName, sizeClass, encoding).getData().length
+                : PayloadSizeModel.classBytes(sizeClass);
+    }
+
+    /**
+     * Returns the complete encoded BSON element for the CLOB, named after {@code field},
+     * as a UTF-8 string or as binary data in one of the binary encodings.
+     */
+    byte[] element(ClobField field, String appName, int sizeClass, ClobEncoding encoding) {
+        AtomicReferenceArray<byte[]> bySize = elements.get(encoding).get(field)
+                .computeIfAbsent(appName, app -> new AtomicReferenceArray<>(PayloadSizeModel.SIZE_CLASSES));
+        byte[] element = bySize.get(sizeClass);
+        if (element == null) {
+            BsonBinary value = binary(field, appName, sizeClass, encoding.isBinary() ? encoding : ClobEncoding.BINARY);
+            element = encodeElement(field.name(), value, encoding.isBinary());
+            bySize.compareAndSet(sizeClass, null, element);
+        }
+        return element;
+    }
+
+    private static byte[] encodeElement(String name, BsonBinary value, boolean binary) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] data = value.getData();
+        // type + name cstring + int32 length + (binary subtype | value) + (value | string terminator)
+        ByteBuffer element = ByteBuffer.allocate(1 + nameBytes.length + 1 + 4 + 1 + data.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        element.put((byte) (binary ? BsonType.BINARY : BsonType.STRING).getValue());
+        element.put(nameBytes).put((byte) 0);
+        if (binary) {
+            element.putInt(data.length).put(value.getType()).put(data);
+        } else {
+            element.putInt(data.length + 1).put(data).put((byte) 0);
+        }
+        return element.array();
+    }
+}
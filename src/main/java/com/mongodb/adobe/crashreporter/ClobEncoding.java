@@ -0,0 +1,238 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonString;
+import org.bson.types.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the CLOB fields of a crash package are stored, chosen with crash.clobEncoding.
+ *
+ * The compressed encodings store a {@link BsonBinary} of the user defined subtype 0x80,
+ * holding a format version byte, a codec byte, the int32 UTF-8 length of the text and then
+ * the compressed text. Readers go through {@link #read} or {@link #decode}, which accept
+ * every encoding, so collections loaded with different settings can be read alike.
+ */
+enum ClobEncoding {
+
+    // UTF-8 string, what the application itself writes
+    STRING("string", (byte) 0, null),
+    // Generic binary holding the UTF-8 bytes, which the driver copies without encoding the text
+    BINARY("binary", (byte) 0, null),
+    DEFLATE("deflate", (byte) 1, new DeflateCodec()),
+    ZSTD("zstd", (byte) 2, new ZstdCodec());
+
+    static final byte COMPRESSED_SUBTYPE = BsonBinarySubType.USER_DEFINED.getValue();
+    static final byte FORMAT_VERSION = 1;
+    // Version, codec, int32 text length
+    private static final int HEADER_BYTES = 6;
+    private static final int ZSTD_LEVEL = 3;
+    // No BSON document holds more, so a larger length means a corrupt header
+    static final int MAX_TEXT_BYTES = 16 * 1024 * 1024;
+
+    final String name;
+    private final byte codec;
+    // Null for the uncompressed encodings
+    private final Compressor compressor;
+
+    ClobEncoding(String name, byte codec, Compressor compressor) {
+        this.name = name;
+        this.codec = codec;
+        this.compressor = compressor;
+    }
+
+    static ClobEncoding named(String name) {
+        for (ClobEncoding encoding : values()) {
+            if (encoding.name.equals(name)) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown CLOB encoding '" + name + "', expected string, binary, deflate or zstd");
+    }
+
+    boolean isBinary() {
+        return this != STRING;
+    }
+
+    boolean isCompressed() {
+        return codec != 0;
+    }
+
+    /**
+     * Encodes a CLOB for one of the binary encodings.
+     */
+    BsonBinary encode(String clob) {
+        byte[] text = clob.getBytes(StandardCharsets.UTF_8);
+        if (!isCompressed()) {
+            return new BsonBinary(text);
+        }
+        byte[] compressed = compressor.compress(text);
+        byte[] data = ByteBuffer.allocate(HEADER_BYTES + compressed.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(FORMAT_VERSION).put(codec).putInt(text.length).put(compressed)
+                .array();
+        return new BsonBinary(COMPRESSED_SUBTYPE, data);
+    }
+
+    /**
+     * Returns the text of CLOB {@code field} in a crash package read as a {@code Document},
+     * {@code RawBsonDocument} or {@code BsonDocument}, or null if the field is missing.
+     */
+    static String read(Map<String, ?> crashDoc, ClobField field) {
+        return decode(crashDoc.get(field.name()));
+    }
+
+    /**
+     * Returns the text of a CLOB value in any of the encodings, as decoded by either codec
+     * registry: a string, a binary of UTF-8 bytes or a compressed binary.
+     *
+     * @throws IllegalArgumentException if the value is no CLOB, was written by a newer format version
+     *         or does not decompress to the length in its header
+     */
+    static String decode(Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof BsonString) {
+            return ((BsonString) value).getValue();
+        }
+        byte subtype;
+        byte[] data;
+        if (value instanceof BsonBinary) {
+            subtype = ((BsonBinary) value).getType();
+            data = ((BsonBinary) value).getData();
+        } else if (value instanceof Binary) {
+            subtype = ((Binary) value).getType();
+            data = ((Binary) value).getData();
+        } else {
+            throw new IllegalArgumentException("Not a CLOB value: " + value.getClass().getName());
+        }
+        if (subtype == BsonBinarySubType.BINARY.getValue()) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        if (subtype != COMPRESSED_SUBTYPE || data.length < HEADER_BYTES) {
+            throw new IllegalArgumentException("Not a CLOB value: binary subtype " + subtype + ", " + data.length + " bytes");
+        }
+        if (data[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported compressed CLOB format version " + data[0]);
+        }
+        ClobEncoding encoding = forCodec(data[1]);
+        int textLength = ByteBuffer.wrap(data, 2, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (textLength < 0 || textLength > MAX_TEXT_BYTES) {
+            throw new IllegalArgumentException("Corrupt compressed CLOB: text length " + textLength +
+                    ", expected 0 to " + MAX_TEXT_BYTES + " bytes");
+        }
+        byte[] text = new byte[textLength];
+        encoding.compressor.decompress(data, HEADER_BYTES, data.length - HEADER_BYTES, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private static ClobEncoding forCodec(byte codec) {
+        for (ClobEncoding encoding : values()) {
+            if (encoding.isCompressed() && encoding.codec == codec) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compressed CLOB codec " + codec);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private interface Compressor {
+
+        byte[] compress(byte[] text);
+
+        /**
+         * Decompresses {@code length} bytes of {@code data} into {@code text}, which is exactly the size of the result.
+         */
+        void decompress(byte[] data, int offset, int length, byte[] text);
+    }
+
+    private static final class DeflateCodec implements Compressor {
+
+        @Override
+        public byte[] compress(byte[] text) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(text);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 8 + 64);
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decompress(byte[] data, int offset, int length, byte[] text) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset, length);
+                int inflated = 0;
+                byte[] spare = new byte[1];
+                // Runs until the end of the stream, which for empty text is all there is
+                while (!inflater.finished()) {
+                    if (inflated < text.length) {
+                        inflated += inflater.inflate(text, inflated, text.length - inflated);
+                    } else if (inflater.inflate(spare) > 0) {
+                        throw new IllegalArgumentException("Deflate CLOB is longer than its " + text.length + " bytes");
+                    }
+                    if (!inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+                if (inflated != text.length || !inflater.finished()) {
+                    throw new IllegalArgumentException("Deflate CLOB is truncated: " + inflated + " of " +
+                            text.length + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt deflate CLOB", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static final class ZstdCodec implements Compressor {
+
+        @Override
+        public byte[] compress(byte[] text) {
+            return Zstd.compress(text, ZSTD_LEVEL);
+        }
+
+        @Override
+        public void decompress(byte[] data, int offset, int length, byte[] text) {
+            long result;
+            try {
+                result = Zstd.decompressByteArray(text, 0, text.length, data, offset, length);
+            } catch (ZstdException e) {
+                // Thrown rather than returned when the text outgrows its declared length
+                throw new IllegalArgumentException("Corrupt zstd CLOB", e);
+            }
+            if (Zstd.isError(result)) {
+                throw new IllegalArgumentException("Corrupt zstd CLOB: " + Zstd.getErrorName(result));
+            }
+            if (result != text.length) {
+                throw new IllegalArgumentException("Zstd CLOB is truncated: " + result + " of " + text.length + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.mongodb.adobe.crashreporter;
+
+/**
+ * The large text fields of a crash package and the per-app text each one is built from.
+ */
+enum ClobField {
+
+    EXCEPTION {
+        @Override
+        String base(String appName) {
+            return "Exception: Rendering failed in " + appName;
+        }
+    },
+    REPROSTEPS {
+        @Override
+        String base(String appName) {
+            return "1. Launch " + appName + "\n2. Load project\n3. Apply effects\n4. Crash";
+        }
+    },
+    NOTES {
+        @Override
+        String base(String appName) {
+            return "Consistent crash in " + appName + " when using GPU acceleration.";
+        }
+    },
+    PACKAGE {
+        @Override
+        String base(String appName) {
+            return "Serialized crash report blob for " + appName;
+        }
+    },
+    CLEAN_COMMENT {
+        @Override
+        String base(String appName) {
+            return "Clean environment, reproducible every time.";
+        }
+    };
+
+    /**
+     * Text that is repeated to fill the field for a crash in {@code appName}.
+     */
+    abstract String base(String appName);
+}
@@ -0,0 +1,367 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipelined crash package generator.
+ *
+ * Generator threads build batches of documents and hand them to a pool of inserter
+ * threads through a bounded queue, so document generation and network I/O overlap.
+ * When the inserters fall behind the queue fills up and the generators block.
+ *
+ * Batch b covers IDs [b * batchSize + 1, (b + 1) * batchSize] and is built by generator
+ * b % generatorThreads with a Random seeded from the seed and b. As long as the generator
+ * only draws from that Random, the same seed therefore always produces the same documents,
+ * whatever the thread count, and a resumed run regenerates a batch exactly as the
+ * interrupted run did. State shared between batches breaks this: bucket IDs handed out at
+ * ingest, for one, depend on which generator reaches a new bucket first.
+ *
+ * Writers are either blocking ({@link BatchWriter}) or asynchronous ({@link AsyncBatchWriter}).
+ * An asynchronous writer returns once the write is started, so an inserter thread can keep
+ * many batches in flight; a batch only counts as written, and is only committed, once its
+ * write completes. The writer bounds how many are in flight by blocking when it is full.
+ * Completed writes are committed on a single committer thread, so neither the commit
+ * listener nor progress output ever runs on a driver callback thread.
+ *
+ * Resumable runs pass a {@link CommitListener}: the pipeline then tracks the watermark
+ * below which every batch is written and keeps generators at most {@code maxLead}
+ * batches ahead of it, which bounds how much a resumed run has to replay.
+ *
+ * Bytes allocated by the generator threads are reported per document where the JVM
+ * supports thread allocation counters, to compare generator backends.
+ */
+class CrashDocumentPipeline<B> {
+
+    /**
+     * Builds one batch of crash packages for {@code count} IDs starting at {@code firstId}.
+     */
+    interface BatchGenerator<B> {
+        B generate(int firstId, int count, Random random);
+    }
+
+    /**
+     * Writes one batch; called concurrently from the inserter threads.
+     */
+    interface BatchWriter<B> {
+        void write(B batch);
+    }
+
+    /**
+     * Starts writing one batch and returns when the write is under way; the stage completes
+     * once the batch is written. Blocking in here is how the writer applies back-pressure.
+     */
+    interface AsyncBatchWriter<B> {
+        CompletionStage<?> write(B batch);
+    }
+
+    /**
+     * Told whenever the watermark advances: every batch below {@code nextBatch} is written.
+     */
+    interface CommitListener {
+        void committed(int nextBatch);
+    }
+
+    private static final LoaderMetrics.Stat GENERATE_TIMER = LoaderMetrics.timer("pipeline.generateBatch");
+    private static final LoaderMetrics.Stat WRITE_TIMER = LoaderMetrics.timer("pipeline.writeBatch");
+    private static final LoaderMetrics.Stat QUEUE_WAIT_TIMER = LoaderMetrics.timer("pipeline.queueWait");
+    // What a blocking writer has completed by the time it returns
+    private static final CompletionStage<?> WRITTEN = CompletableFuture.completedFuture(null);
+
+    // A generated batch, its index and the number of crash packages in it
+    private static final class QueuedBatch<B> {
+        final B batch;
+        final int index;
+        final int count;
+
+        QueuedBatch(B batch, int index, int count) {
+            this.batch = batch;
+            this.index = index;
+            this.count = count;
+        }
+    }
+
+    // Tells an inserter that no more batches are coming
+    private final QueuedBatch<B> endOfStream = new QueuedBatch<>(null, -1, 0);
+
+    // Contiguous commit watermark of a resumable run
+    private static final class CommitTracker {
+        private final CommitListener listener;
+        private final int maxLead;
+        private final TreeSet<Integer> committedAhead = new TreeSet<>();
+        private int nextBatch;
+        // Last watermark the listener has taken; generation is throttled against this one
+        private int reportedNextBatch;
+
+        CommitTracker(CommitListener listener, int firstBatch, int maxLead) {
+            this.listener = listener;
+            this.nextBatch = firstBatch;
+            this.reportedNextBatch = firstBatch;
+            this.maxLead = maxLead;
+        }
+
+        void committed(int batch) {
+            int advancedTo;
+            synchronized (this) {
+                committedAhead.add(batch);
+                int before = nextBatch;
+                while (committedAhead.remove(nextBatch)) {
+                    nextBatch++;
+                }
+                if (nextBatch == before) {
+                    return;
+                }
+                advancedTo = nextBatch;
+            }
+            // Outside the lock: the listener persists the watermark, and saving it is idempotent
+            listener.committed(advancedTo);
+            synchronized (this) {
+                reportedNextBatch = Math.max(reportedNextBatch, advancedTo);
+                notifyAll();
+            }
+        }
+
+        // Waits up to timeoutMillis for batch to come within maxLead of the reported watermark
+        synchronized boolean awaitRoom(int batch, long timeoutMillis) throws InterruptedException {
+            if (batch >= reportedNextBatch + maxLead) {
+                wait(timeoutMillis);
+            }
+            return batch < reportedNextBatch + maxLead;
+        }
+    }
+
+    private final int generatorThreads;
+    private final int inserterThreads;
+    private final int queueCapacity;
+    private final long seed;
+
+    CrashDocumentPipeline(int generatorThreads, int inserterThreads, int queueCapacity, long seed) {
+        if (generatorThreads < 1 || inserterThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Generator threads, inserter threads and queue capacity must be at least 1");
+        }
+        this.generatorThreads = generatorThreads;
+        this.inserterThreads = inserterThreads;
+        this.queueCapacity = queueCapacity;
+        this.seed = seed;
+    }
+
+    /**
+     * Generates and writes crash packages 1..numDocs, returning once every batch is written.
+     * The first failure from any thread stops the run and is rethrown here.
+     */
+    void run(int numDocs, int batchSize, BatchGenerator<B> generator, BatchWriter<B> writer) {
+        run(numDocs, batchSize, 0, generator, writer, null, 0);
+    }
+
+    /**
+     * Like {@link #run(int, int, BatchGenerator, BatchWriter)}, but starts at batch
+     * {@code firstBatch} and, if {@code commitListener} is set, reports the commit
+     * watermark to it while keeping generation at most {@code maxLead} batches ahead.
+     */
+    void run(int numDocs, int batchSize, int firstBatch, BatchGenerator<B> generator, BatchWriter<B> writer,
+             CommitListener commitListener, int maxLead) {
+        runAsync(numDocs, batchSize, firstBatch, generator, batch -> {
+            writer.write(batch);
+            return WRITTEN;
+        }, commitListener, maxLead);
+    }
+
+    /**
+     * Like {@link #run(int, int, int, BatchGenerator, BatchWriter, CommitListener, int)}, with a
+     * writer that completes batches asynchronously. Returns once every started write has completed.
+     */
+    void runAsync(int numDocs, int batchSize, int firstBatch, BatchGenerator<B> generator, AsyncBatchWriter<B> writer,
+                  CommitListener commitListener, int maxLead) {
+        int batchCount = (numDocs + batchSize - 1) / batchSize;
+        CommitTracker commitTracker = commitListener == null ? null
+                : new CommitTracker(commitListener, firstBatch, Math.max(1, maxLead));
+        BlockingQueue<QueuedBatch<B>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger writtenBatches = new AtomicInteger();
+        AtomicLong writtenDocs = new AtomicLong();
+        AtomicLong generatorAllocatedBytes = new AtomicLong();
+        // One party per write still in flight, plus the thread running the pipeline
+        Phaser pendingWrites = new Phaser(1);
+
+        // Platform threads: the build targets Java 8, which has no virtual threads
+        ExecutorService generators = Executors.newFixedThreadPool(generatorThreads, namedThreads("crash-generator"));
+        ExecutorService inserters = Executors.newFixedThreadPool(inserterThreads, namedThreads("crash-inserter"));
+        // Completed writes are committed and reported here, off the inserter and driver threads
+        ExecutorService committer = Executors.newSingleThreadExecutor(namedThreads("crash-committer"));
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> inserterFutures = new ArrayList<>(inserterThreads);
+            for (int i = 0; i < inserterThreads; i++) {
+                inserterFutures.add(inserters.submit(reportingFailure(failure, () -> {
+                    while (true) {
+                        long waitStart = System.nanoTime();
+                        QueuedBatch<B> queued = queue.take();
+                        QUEUE_WAIT_TIMER.recordSince(waitStart);
+                        if (queued == endOfStream) {
+                            return null;
+                        }
+                        if (failure.get() != null) {
+                            // Keep draining so blocked generators can see the failure and stop
+                            continue;
+                        }
+                        long writeStart = System.nanoTime();
+                        CompletionStage<?> written;
+                        pendingWrites.register();
+                        try {
+                            written = writer.write(queued.batch);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                            pendingWrites.arriveAndDeregister();
+                            continue;
+                        }
+                        // Never on a driver thread: the commit listener blocks on a database write
+                        written.whenCompleteAsync((result, error) -> {
+                            try {
+                                if (error != null) {
+                                    failure.compareAndSet(null, error instanceof CompletionException ? error.getCause() : error);
+                                    return;
+                                }
+                                WRITE_TIMER.recordSince(writeStart);
+                                if (commitTracker != null) {
+                                    commitTracker.committed(queued.index);
+                                }
+                                int batchNumber = writtenBatches.incrementAndGet();
+                                long total = writtenDocs.addAndGet(queued.count);
+                                System.out.println("Processed batch #" + batchNumber +
+                                        " (" + queued.count + " records)" +
+                                        " - Total: " + total + "/" + numDocs);
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                pendingWrites.arriveAndDeregister();
+                            }
+                        }, committer);
+                    }
+                })));
+            }
+
+            List<Future<?>> generatorFutures = new ArrayList<>(generatorThreads);
+            for (int w = 0; w < generatorThreads; w++) {
+                int worker = w;
+                generatorFutures.add(generators.submit(reportingFailure(failure, () -> {
+                    for (int b = firstBatch + worker; b < batchCount && failure.get() == null; b += generatorThreads) {
+                        // Bound the replay window of a resumable run
+                        while (commitTracker != null && !commitTracker.awaitRoom(b, 100)) {
+                            if (failure.get() != null) {
+                                return null;
+                            }
+                        }
+                        int firstId = b * batchSize + 1;
+                        int count = Math.min(batchSize, numDocs - firstId + 1);
+                        QueuedBatch<B> queued;
+                        try {
+                            long allocatedBefore = currentThreadAllocatedBytes();
+                            long generateStart = System.nanoTime();
+                            Random random = new Random(seed ^ (b * 0x9E3779B97F4A7C15L));
+                            queued = new QueuedBatch<>(generator.generate(firstId, count, random), b, count);
+                            GENERATE_TIMER.recordSince(generateStart);
+                            generatorAllocatedBytes.addAndGet(currentThreadAllocatedBytes() - allocatedBefore);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                            return null;
+                        }
+                        // Back-pressure: wait for room, but give up once the run has failed
+                        while (!queue.offer(queued, 100, TimeUnit.MILLISECONDS)) {
+                            if (failure.get() != null) {
+                                return null;
+                            }
+                        }
+                    }
+                    return null;
+                })));
+            }
+
+            for (Future<?> future : generatorFutures) {
+                future.get();
+            }
+            for (int i = 0; i < inserterThreads; i++) {
+                queue.put(endOfStream);
+            }
+            for (Future<?> future : inserterFutures) {
+                future.get();
+            }
+            pendingWrites.awaitAdvanceInterruptibly(pendingWrites.arrive());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading crash documents", e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        } finally {
+            generators.shutdownNow();
+            inserters.shutdownNow();
+            committer.shutdownNow();
+        }
+
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new IllegalStateException("Crash document pipeline failed: " + error.getMessage(), error);
+        }
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("Inserted " + writtenDocs.get() + " crash documents in " + elapsedMillis + " ms" +
+                " (" + (writtenDocs.get() * 1000 / elapsedMillis) + " docs/sec, " +
+                generatorThreads + " generators, " + inserterThreads + " inserters)");
+        if (generatorAllocatedBytes.get() > 0 && writtenDocs.get() > 0) {
+            System.out.println("Generation allocated " + (generatorAllocatedBytes.get() / writtenDocs.get()) + " bytes/doc");
+        }
+    }
+
+    /**
+     * Records whatever ends {@code task} abnormally, Errors included, as the run's failure right
+     * away. Its Future is only read once the generators are done, and they wait on the
+     * inserters: an inserter that died unnoticed would leave them blocked on a full queue.
+     */
+    private static <T> Callable<T> reportingFailure(AtomicReference<Throwable> failure, Callable<T> task) {
+        return () -> {
+            try {
+                return task.call();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            }
+        };
+    }
+
+    // Zero when the JVM has no per-thread allocation counter
+    private static long currentThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
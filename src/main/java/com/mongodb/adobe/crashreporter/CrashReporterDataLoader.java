@@ -1,3 +1,5 @@
+package com.mongodb.adobe.crashreporter;
+
 import com.mongodb.client.*;
 import com.mongodb.client.model.InsertManyOptions;
 
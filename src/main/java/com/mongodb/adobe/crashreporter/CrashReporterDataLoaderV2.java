@@ -0,0 +1,897 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.*;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+public class CrashReporterDataLoaderV2 {
+
+    private static final String CONNECTION_URI =  "mongodb://localhost:27017";
+    private static final String DATABASE = "CRASH";
+    private static final int NUM_DOCS = Integer.getInteger("crash.numDocs", 100000);
+    // "default", "fast-ingest" or "safe": write concern, retries and batching, see WriteProfile
+    private static final WriteProfile WRITE_PROFILE = WriteProfile.named(System.getProperty("crash.writeProfile", "default"));
+    private static final int BATCH_SIZE = Integer.getInteger("crash.batchSize", WRITE_PROFILE.batchSize);
+
+    // Phase 1 pipeline: document generator threads, insert threads and batches buffered between them
+    private static final int GENERATOR_THREADS = Integer.getInteger("crash.generatorThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int INSERTER_THREADS = Integer.getInteger("crash.inserterThreads", WRITE_PROFILE.inserterThreads);
+    private static final int INSERT_QUEUE_CAPACITY = Integer.getInteger("crash.insertQueueCapacity", 16);
+    private static final long GENERATOR_SEED = Long.getLong("crash.seed", 42L);
+    // "document" builds org.bson.Document crash packages, "raw" encodes them straight to RawBsonDocument
+    private static final String GENERATOR = System.getProperty("crash.generator", "document");
+    // "two-phase" buckets in a second pass over CRD_CRASH_PKG (also used for backfills), "ingest" while generating
+    private static final String BUCKETING = System.getProperty("crash.bucketing", "two-phase");
+    // "load" generates and buckets, "rebucket" only re-buckets existing crashes,
+    // "compare-bucketing" times every Phase 2 engine over the existing crashes,
+    // "loadtest" drives a rate-limited read/write mix, see LoadTest for the crash.loadTest properties,
+    // "stream" keeps bucketing new crashes from a change stream until stopped, see ChangeStreamBucketer,
+    // "generate" writes a seeded dataset to crash.datasetDir without touching the database,
+    // "replay" loads that dataset as-is in place of Phase 1,
+    // "top" prints the top buckets of crash.topApp from the hourly rollups, see TopBucketQuery
+    private static final String MODE = System.getProperty("crash.mode", "load");
+    // Names a resumable run: progress is checkpointed in LOADER_STATE and the same ID picks it up again
+    private static final String RUN_ID = System.getProperty("crash.runId");
+    // Phase 2 engine: "client" pulls crashes to the loader, "parallel" does the same with one worker
+    // per ID range, "aggregation" buckets them on the server
+    private static final String BUCKET_ENGINE = System.getProperty("crash.bucketEngine", "client");
+    // Checkpointed runs default to no more workers than their batch markers can cover
+    private static final int PHASE2_THREADS = Integer.getInteger("crash.phase2Threads", RUN_ID == null
+            ? Runtime.getRuntime().availableProcessors()
+            : Math.min(Runtime.getRuntime().availableProcessors(), LoaderCheckpoint.MAX_MARKED_WORKERS));
+    private static final int AGGREGATION_CHUNK_SIZE = Integer.getInteger("crash.aggregationChunkSize", 50000);
+    private static final long AGGREGATION_CHUNK_PAUSE_MS = Long.getLong("crash.aggregationChunkPauseMs", 0L);
+    // "sync" blocks an inserter thread per write, "reactive" keeps up to crash.maxInFlightBatches
+    // Phase 1 inserts and Phase 2 bulk writes in flight on the Reactive Streams driver
+    private static final String DRIVER = System.getProperty("crash.driver", "sync");
+    private static final int MAX_IN_FLIGHT_BATCHES = Integer.getInteger("crash.maxInFlightBatches", 16);
+    // Dataset files of the generate and replay modes
+    private static final String DATASET_DIR = System.getProperty("crash.datasetDir", "dataset");
+    private static final String CRASH_DATASET = "CRD_CRASH_PKG.bson";
+    private static final String BUCKET_DATASET = "CRD_BUCKET_ADOBE.bson";
+    // Names a change stream bucketer; its resume token is kept in LOADER_STATE under this ID
+    private static final String STREAM_ID = System.getProperty("crash.streamId", "bucketer");
+    private static final long STREAM_MAX_WAIT_MS = Long.getLong("crash.streamMaxWaitMs", 1000L);
+    // Maintains hourly crash counters per bucket and app build while bucketing, see CrashRollupStage
+    private static final boolean ROLLUPS = Boolean.getBoolean("crash.rollups");
+    // Top-N query of the "top" mode: app, version (all if unset), hours back and number of buckets
+    private static final String TOP_APP = System.getProperty("crash.topApp", "Photoshop");
+    private static final String TOP_VERSION = System.getProperty("crash.topVersion");
+    private static final int TOP_HOURS = Integer.getInteger("crash.topHours", 1);
+    private static final int TOP_N = Integer.getInteger("crash.topN", 10);
+    // Rankings are reused for this long, and at most this many are kept
+    private static final long TOP_CACHE_TTL_MS = Long.getLong("crash.topCacheTtlMs", 60_000L);
+    private static final int TOP_CACHE_SIZE = Integer.getInteger("crash.topCacheSize", 1000);
+    // Reads all CLOBs back after the load and reports the scan rate, to compare crash.clobEncoding settings
+    private static final boolean SCAN_CLOBS = Boolean.getBoolean("crash.scanClobs");
+    // Seconds between metrics log lines, 0 for none; the metrics are on JMX either way
+    private static final int METRICS_INTERVAL_SEC = Integer.getInteger("crash.metricsIntervalSec", 10);
+
+    private static final LoaderMetrics.Stat INSERT_TIMER = LoaderMetrics.timer("mongo.insertMany.crashes");
+    private static final LoaderMetrics.Stat UPSERT_TIMER = LoaderMetrics.timer("mongo.bulkWrite.crashUpserts");
+    static final LoaderMetrics.Stat FIND_TIMER = LoaderMetrics.timer("mongo.find.crashPage");
+    private static final LoaderMetrics.Stat CRASH_BATCH = LoaderMetrics.distribution("batch.crashDocs");
+
+    // Size distribution per CLOB field, see PayloadModel for the crash.clobSize properties
+    private static final PayloadModel PAYLOAD_MODEL = PayloadModel.fromSystemProperties();
+
+    // CLOB payloads are built once per field, app and size; "binary" stores them as pre-encoded UTF-8 BsonBinary,
+    // "deflate" and "zstd" as compressed BsonBinary, see ClobEncoding
+    private static final ClobCache CLOB_CACHE = new ClobCache(CrashReporterDataLoaderV2::getClob);
+    private static final ClobEncoding CLOB_ENCODING = ClobEncoding.named(System.getProperty("crash.clobEncoding", "string"));
+    private static final int FIRST_BUCKET_ID = 10000;
+
+    private static final List<String> ADOBE_APPS = Arrays.asList(
+            "Photoshop", "Illustrator", "Premiere Pro",
+            "After Effects", "InDesign", "XD",
+            "Lightroom", "Acrobat Pro", "Animate",
+            "Dreamweaver"
+    );
+
+    // Only the fields Phase 2 needs to bucket a crash; the CLOB fields never leave the server
+    static final Bson BUCKETING_PROJECTION = Projections.fields(
+            Projections.include("ID", "MODULE", "OFFSET", "CRASHDATE",
+                    "APP.APP_ID", "APP.NAME", "APP.VERSION", "APP.BUILD"),
+            Projections.excludeId());
+
+	public static void main(String[] args) {
+
+		if ("generate".equals(MODE)) {
+		    try {
+		        generateDataset(Paths.get(DATASET_DIR));
+		    } catch (IOException | RuntimeException e) {
+		        System.err.println("Error generating dataset: " + e.getMessage());
+		        e.printStackTrace();
+		    }
+		    return;
+		}
+
+		MongoClientSettings settings = WRITE_PROFILE.apply(MongoClientSettings.builder())
+		        .applyConnectionString(new ConnectionString(CONNECTION_URI))
+		        .addCommandListener(LoaderMetrics.commandListener())
+		        .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(LoaderMetrics.connectionPoolListener()))
+		        .build();
+		try (MongoClient mongoClient = MongoClients.create(settings);
+		     ReactiveWriteBackend asyncWrites = "reactive".equals(DRIVER)
+		             ? new ReactiveWriteBackend(settings, DATABASE, MAX_IN_FLIGHT_BATCHES) : null) {
+            LoaderMetrics.startReporting(mongoClient, METRICS_INTERVAL_SEC);
+            MongoDatabase db = mongoClient.getDatabase(DATABASE);
+            MongoCollection<Document> crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+            CrashRollupStage rollups = ROLLUPS ? new CrashRollupStage(db) : null;
+
+            if ("top".equals(MODE)) {
+                printTopBuckets(new TopBucketQuery(db, TOP_CACHE_TTL_MS, TOP_CACHE_SIZE));
+                return;
+            }
+
+            if ("compare-bucketing".equals(MODE)) {
+                // Re-bucket the existing crash packages with every engine and compare, without rollups
+                // since every engine would count the same crashes again
+                Map<String, Runnable> engines = new LinkedHashMap<>();
+                engines.put("client", () -> createBucketsAndUpdateCrashDocuments(mongoClient, db, null, asyncWrites, null));
+                engines.put("parallel", () -> createParallelBucketer(db, null, null).run());
+                engines.put("aggregation", () -> createAggregationBucketer(db, null).run());
+                new BucketingComparison(db).run(engines);
+                return;
+            }
+
+            if ("loadtest".equals(MODE)) {
+                new LoadTest(crashPkgCollection, db.getCollection("CRD_BUCKET_ADOBE"),
+                        LoadTest.Settings.fromSystemProperties(),
+                        (id, random) -> {
+                            Document appSubDoc = createAppSubDoc(random);
+                            return createCrashDocument(id, appSubDoc, appSubDoc.getString("NAME") + "Core",
+                                    1024 * (random.nextInt(10) + 1), null, random);
+                        },
+                        GENERATOR_SEED).run();
+                return;
+            }
+
+            if ("stream".equals(MODE)) {
+                ChangeStreamBucketer streamBucketer = new ChangeStreamBucketer(db, STREAM_ID, BATCH_SIZE,
+                        STREAM_MAX_WAIT_MS, FIRST_BUCKET_ID, CrashReporterDataLoaderV2::createBucketDocument, rollups);
+                Thread streamThread = Thread.currentThread();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        streamBucketer.stop();
+                    } catch (InterruptedException e) {
+                        streamThread.interrupt();
+                    }
+                }));
+                System.out.println("Bucketing new crashes from the change stream, stop with Ctrl-C...");
+                streamBucketer.run();
+                return;
+            }
+
+            LoaderCheckpoint checkpoint = RUN_ID == null ? null : LoaderCheckpoint.open(db, RUN_ID, BATCH_SIZE);
+
+            // Ingest mode buckets crashes as they are generated; two-phase mode leaves it to Phase 2
+            IngestBucketer bucketer = null;
+            if ("ingest".equals(BUCKETING) && !"rebucket".equals(MODE) && !"replay".equals(MODE)) {
+                MongoCollection<Document> bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+                int firstBucketId = checkpoint == null ? FIRST_BUCKET_ID : checkpoint.firstBucketId(FIRST_BUCKET_ID);
+                bucketer = new IngestBucketer(BucketIndex.load(bucketCollection, firstBucketId),
+                        bucketCollection, CrashReporterDataLoaderV2::createBucketDocument, rollups);
+            }
+
+            // PHASE 1: Create and insert crash documents (skipped when only re-bucketing existing data)
+            long phaseStart = System.nanoTime();
+            boolean bucketed = bucketer != null;
+            if (checkpoint != null && checkpoint.isComplete("PHASE1")) {
+                System.out.println("PHASE 1: Run '" + RUN_ID + "' already loaded its crash documents.");
+            } else if ("replay".equals(MODE)) {
+                System.out.println("PHASE 1: Replaying the dataset in " + DATASET_DIR + " (" + DRIVER + " driver)...");
+                bucketed = replayDataset(db, Paths.get(DATASET_DIR), asyncWrites);
+            } else if (!"rebucket".equals(MODE)) {
+                System.out.println("PHASE 1: Creating and inserting crash documents (" + GENERATOR + " generator, " +
+                        BUCKETING + " bucketing, " + DRIVER + " driver)...");
+                if ("raw".equals(GENERATOR)) {
+                    createRawCrashDocuments(db.getCollection("CRD_CRASH_PKG", RawBsonDocument.class), bucketer,
+                            checkpoint, asyncWrites);
+                } else {
+                    createCrashDocuments(crashPkgCollection, bucketer, checkpoint, asyncWrites);
+                }
+            }
+            long phase1Nanos = System.nanoTime() - phaseStart;
+
+            phaseStart = System.nanoTime();
+            if (!bucketed) {
+                // PHASE 2: Process crash documents to create buckets and update crash documents
+                System.out.println("\nPHASE 2: Creating buckets and updating crash documents (" + BUCKET_ENGINE + " engine)...");
+                if ("aggregation".equals(BUCKET_ENGINE)) {
+                    createAggregationBucketer(db, checkpoint).run();
+                } else if ("parallel".equals(BUCKET_ENGINE)) {
+                    createParallelBucketer(db, checkpoint, rollups).run();
+                } else {
+                    createBucketsAndUpdateCrashDocuments(mongoClient, db, checkpoint, asyncWrites, rollups);
+                }
+            }
+            long phase2Nanos = System.nanoTime() - phaseStart;
+
+            // PHASE 3: Indexes the load itself does not need are only built once it is done
+            System.out.println("\nPHASE 3: Building post-load indexes...");
+            phaseStart = System.nanoTime();
+            createPostLoadIndexes(db, rollups);
+            long phase3Nanos = System.nanoTime() - phaseStart;
+
+            printProfileThroughput(crashPkgCollection, phase1Nanos, phase2Nanos, phase3Nanos);
+            if (SCAN_CLOBS) {
+                scanClobs(db);
+            }
+
+            System.out.println();
+            PAYLOAD_MODEL.printSummary(db, "CRD_CRASH_PKG", "CRD_BUCKET_ADOBE");
+
+            System.out.println("\nData processing complete.");
+            System.out.println("Metrics: " + LoaderMetrics.summary());
+        } catch (Exception e) {
+            System.err.println("Error processing data: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            LoaderMetrics.stopReporting();
+        }
+	}
+
+	/**
+	 * Builds the query indexes in one pass per collection. Only the indexes a load depends on
+	 * are created up front: crash ID for checkpointed upserts and Phase 2 paging, and the
+	 * unique bucket key and bucket ID that bucketing writes through (see {@link BucketIndex#load}),
+	 * so the bucket ID is not rebuilt here. Rollups are upserted by _id, so their query index
+	 * can wait as well.
+	 */
+	private static void createPostLoadIndexes(MongoDatabase db, CrashRollupStage rollups) {
+	    long start = System.nanoTime();
+	    db.getCollection("CRD_CRASH_PKG").createIndexes(Arrays.asList(
+	            new IndexModel(Indexes.ascending("ID")),
+	            new IndexModel(Indexes.ascending("BUCKET_ID_ADOBE"))));
+	    db.getCollection("CRD_BUCKET_ADOBE").createIndexes(Arrays.asList(
+	            new IndexModel(BucketIndex.BUCKET_KEY_INDEX, new IndexOptions().unique(true))));
+	    if (rollups != null) {
+	        rollups.createIndexes();
+	    }
+	    System.out.println("Indexes built in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Reports the throughput of each phase, so write profiles can be compared run by run
+	 */
+	private static void printProfileThroughput(MongoCollection<Document> crashPkgCollection,
+	                                           long phase1Nanos, long phase2Nanos, long phase3Nanos) {
+	    long loadedDocs = CRASH_BATCH.total.sum();
+	    long crashDocs = crashPkgCollection.estimatedDocumentCount();
+	    long totalNanos = phase1Nanos + phase2Nanos + phase3Nanos;
+	    System.out.println("\nWrite profile " + WRITE_PROFILE + ", " + CLOB_ENCODING + " CLOBs:");
+	    System.out.println(String.format("  Phase 1: %d crash documents in %.1f s (%.0f docs/s, %.1f MB/s of CLOB text)",
+	            loadedDocs, phase1Nanos / 1e9, perSecond(loadedDocs, phase1Nanos),
+	            perSecond(PAYLOAD_MODEL.generatedBytes(), phase1Nanos) / (1024 * 1024)));
+	    System.out.println(String.format("  Phase 2: %d crash documents in %.1f s (%.0f docs/s)",
+	            crashDocs, phase2Nanos / 1e9, perSecond(crashDocs, phase2Nanos)));
+	    System.out.println(String.format("  Phase 3: indexes in %.1f s", phase3Nanos / 1e9));
+	    System.out.println(String.format("  Total:   %.1f s (%.0f loaded docs/s end to end)",
+	            totalNanos / 1e9, perSecond(loadedDocs, totalNanos)));
+	}
+
+	/**
+	 * Reads the CLOB fields of every crash package through {@link ClobEncoding#read}, as a reader
+	 * of the collection would, and prints the scan rate in documents, stored bytes and decoded text.
+	 */
+	private static void scanClobs(MongoDatabase db) {
+	    List<String> clobFields = new ArrayList<>();
+	    for (ClobField field : ClobField.values()) {
+	        clobFields.add(field.name());
+	    }
+	    long start = System.nanoTime();
+	    long docs = 0;
+	    long storedBytes = 0;
+	    long textChars = 0;
+	    try (MongoCursor<RawBsonDocument> cursor = db.getCollection("CRD_CRASH_PKG", RawBsonDocument.class).find()
+	            .projection(Projections.include(clobFields))
+	            .batchSize(BATCH_SIZE)
+	            .iterator()) {
+	        while (cursor.hasNext()) {
+	            RawBsonDocument crashDoc = cursor.next();
+	            storedBytes += crashDoc.getByteBuffer().remaining();
+	            for (ClobField field : ClobField.values()) {
+	                String clob = ClobEncoding.read(crashDoc, field);
+	                textChars += clob == null ? 0 : clob.length();
+	            }
+	            docs++;
+	        }
+	    }
+	    long nanos = System.nanoTime() - start;
+	    System.out.println(String.format("  CLOB scan: %d crash documents in %.1f s (%.0f docs/s, %.1f MB/s read, %.1f MB/s of CLOB text)",
+	            docs, nanos / 1e9, perSecond(docs, nanos),
+	            perSecond(storedBytes, nanos) / (1024 * 1024), perSecond(textChars, nanos) / (1024 * 1024)));
+	}
+
+	private static double perSecond(long count, long nanos) {
+	    return nanos == 0 ? 0 : count * 1e9 / nanos;
+	}
+
+	private static AggregationBucketer createAggregationBucketer(MongoDatabase db, LoaderCheckpoint checkpoint) {
+	    return new AggregationBucketer(db, AGGREGATION_CHUNK_SIZE, AGGREGATION_CHUNK_PAUSE_MS, FIRST_BUCKET_ID,
+	            checkpoint);
+	}
+
+	private static ParallelBucketer createParallelBucketer(MongoDatabase db, LoaderCheckpoint checkpoint,
+	                                                       CrashRollupStage rollups) {
+	    return new ParallelBucketer(db, PHASE2_THREADS, BATCH_SIZE, FIRST_BUCKET_ID,
+	            CrashReporterDataLoaderV2::createBucketDocument, checkpoint, rollups);
+	}
+
+	private static void printTopBuckets(TopBucketQuery topBuckets) {
+	    long start = System.nanoTime();
+	    List<TopBucketQuery.BucketCount> buckets = topBuckets.topBucketsLastHours(TOP_APP, TOP_VERSION, TOP_HOURS, TOP_N);
+	    System.out.println("Top " + TOP_N + " buckets for " + TOP_APP + (TOP_VERSION == null ? "" : " " + TOP_VERSION) +
+	            " in the last " + TOP_HOURS + " hour(s), read in " + (System.nanoTime() - start) / 1_000_000 + " ms:");
+	    for (TopBucketQuery.BucketCount bucket : buckets) {
+	        System.out.println("  " + bucket);
+	    }
+	}
+
+	/**
+	 * Encodes one crash package, for either generator backend
+	 */
+	private interface CrashEncoder<T> {
+	    T encode(int i, Document appSubDoc, String module, int offset, Integer bucketId, Random random);
+	}
+
+	/**
+	 * Phase 1: Create and insert crash documents
+	 * Generator threads build batches while inserter threads write them, see {@link CrashDocumentPipeline}.
+	 * With an ingest bucketer every crash is assigned its bucket here and Phase 2 is not needed.
+	 * With a checkpoint the run resumes at its last watermark and batches are upserted by ID.
+	 * With {@code asyncWrites} the inserter threads only start the writes, see {@link ReactiveWriteBackend}.
+	 */
+	private static void createCrashDocuments(MongoCollection<Document> crashPkgCollection, IngestBucketer bucketer,
+	                                         LoaderCheckpoint checkpoint, ReactiveWriteBackend asyncWrites) {
+	    runCrashPipeline(crashPkgCollection, bucketer, checkpoint, asyncWrites, CrashReporterDataLoaderV2::createCrashDocument);
+	}
+
+	/**
+	 * Phase 1 on the raw BSON backend: same crash packages, encoded by {@link RawCrashPackageEncoder}
+	 */
+	private static void createRawCrashDocuments(MongoCollection<RawBsonDocument> crashPkgCollection,
+	                                            IngestBucketer bucketer, LoaderCheckpoint checkpoint,
+	                                            ReactiveWriteBackend asyncWrites) {
+	    ThreadLocal<RawCrashPackageEncoder> encoders = ThreadLocal.withInitial(
+	            () -> new RawCrashPackageEncoder(CLOB_CACHE, PAYLOAD_MODEL, CLOB_ENCODING));
+	    runCrashPipeline(crashPkgCollection, bucketer, checkpoint, asyncWrites,
+	            (i, appSubDoc, module, offset, bucketId, random) ->
+	                    encoders.get().encode(i, appSubDoc, module, offset, bucketId, random));
+	}
+
+	private static <T> void runCrashPipeline(MongoCollection<T> crashPkgCollection, IngestBucketer bucketer,
+	                                         LoaderCheckpoint checkpoint, ReactiveWriteBackend asyncWrites,
+	                                         CrashEncoder<T> encoder) {
+	    int firstBatch = 0;
+	    CrashDocumentPipeline.CommitListener commitListener = null;
+	    if (checkpoint != null) {
+	        // Batches are upserted by ID so a replayed batch replaces what the interrupted run wrote
+	        crashPkgCollection.createIndex(Indexes.ascending("ID"));
+	        firstBatch = checkpoint.phase1NextBatch();
+	        if (firstBatch > 0) {
+	            System.out.println("Resuming Phase 1 at batch " + firstBatch + " (crash ID " + (firstBatch * BATCH_SIZE + 1) + ")");
+	        }
+	        BucketIndex bucketIndex = bucketer == null ? null : bucketer.bucketIndex();
+	        commitListener = nextBatch -> checkpoint.savePhase1(nextBatch, bucketIndex);
+	    }
+
+	    CrashDocumentPipeline.BatchGenerator<IngestBucketer.Batch<T>> generator =
+	            crashBatchGenerator(bucketer, checkpoint, encoder);
+
+	    CrashDocumentPipeline<IngestBucketer.Batch<T>> pipeline = new CrashDocumentPipeline<>(
+	            GENERATOR_THREADS, INSERTER_THREADS, INSERT_QUEUE_CAPACITY, GENERATOR_SEED);
+	    if (asyncWrites == null) {
+	        pipeline.run(NUM_DOCS, BATCH_SIZE, firstBatch, generator,
+	                batch -> {
+	                    writeIngestBuckets(bucketer, batch);
+	                    CRASH_BATCH.record(batch.crashDocs.size());
+	                    long start = System.nanoTime();
+	                    if (checkpoint == null) {
+	                        crashPkgCollection.insertMany(batch.crashDocs, WRITE_PROFILE.insertManyOptions());
+	                        INSERT_TIMER.recordSince(start);
+	                    } else {
+	                        crashPkgCollection.bulkWrite(crashUpserts(batch), WRITE_PROFILE.bulkWriteOptions());
+	                        UPSERT_TIMER.recordSince(start);
+	                    }
+	                },
+	                commitListener, LoaderCheckpoint.MARKER_WINDOW);
+	    } else {
+	        com.mongodb.reactivestreams.client.MongoCollection<T> asyncCollection = asyncWrites.collection(
+	                crashPkgCollection.getNamespace().getCollectionName(), crashPkgCollection.getDocumentClass());
+	        pipeline.runAsync(NUM_DOCS, BATCH_SIZE, firstBatch, generator,
+	                batch -> {
+	                    // Bucket upserts stay synchronous: they must land before the crashes that reference them
+	                    writeIngestBuckets(bucketer, batch);
+	                    CRASH_BATCH.record(batch.crashDocs.size());
+	                    return checkpoint == null
+	                            ? asyncWrites.insertMany(asyncCollection, batch.crashDocs, WRITE_PROFILE.insertManyOptions())
+	                            : asyncWrites.bulkWrite(asyncCollection, crashUpserts(batch), WRITE_PROFILE.bulkWriteOptions(), null);
+	                },
+	                commitListener, LoaderCheckpoint.MARKER_WINDOW);
+	    }
+
+	    if (checkpoint != null) {
+	        checkpoint.markComplete("PHASE1");
+	    }
+	}
+
+	/**
+	 * Writes the buckets of a Phase 1 batch, if bucketing at ingest. Its crash packages are
+	 * already built with their bucket IDs, so buckets another writer created meanwhile fail the run.
+	 */
+	private static void writeIngestBuckets(IngestBucketer bucketer, IngestBucketer.Batch<?> batch) {
+	    if (bucketer == null) {
+	        return;
+	    }
+	    Map<Integer, Integer> remapped = bucketer.writeBuckets(batch);
+	    if (!remapped.isEmpty()) {
+	        throw new IllegalStateException("Another writer created buckets of the batch at crash ID " + batch.firstId +
+	                " under other IDs " + remapped + "; ingest bucketing needs the bucket collection to itself");
+	    }
+	}
+
+	/**
+	 * Builds the crash packages of one batch and, with an ingest bucketer, assigns their buckets
+	 */
+	private static <T> CrashDocumentPipeline.BatchGenerator<IngestBucketer.Batch<T>> crashBatchGenerator(
+	        IngestBucketer bucketer, LoaderCheckpoint checkpoint, CrashEncoder<T> encoder) {
+	    return (firstId, count, random) -> {
+	        IngestBucketer.Batch<T> batch = new IngestBucketer.Batch<>(firstId, count);
+	        if (checkpoint != null) {
+	            batch.marker = checkpoint.batchMarker("load", firstId);
+	        }
+	        for (int i = firstId; i < firstId + count; i++) {
+	            Document appSubDoc = createAppSubDoc(random);
+	            String module = appSubDoc.getString("NAME") + "Core";
+	            int offset = 1024 * (random.nextInt(10) + 1); // Random offset
+	            Integer bucketId = bucketer == null ? null
+	                    : bucketer.assign(batch, appSubDoc, module, offset, new Date());
+	            batch.crashDocs.add(encoder.encode(i, appSubDoc, module, offset, bucketId, random));
+	        }
+	        return batch;
+	    };
+	}
+
+	/**
+	 * Writes the crash packages, and with ingest bucketing the buckets they add up to, to BSON files
+	 * for {@link #replayDataset}. Buckets are assigned on one generator thread, so a seed always
+	 * produces the same documents in the same order.
+	 */
+	private static void generateDataset(Path datasetDir) throws IOException {
+	    Files.createDirectories(datasetDir);
+	    boolean ingest = "ingest".equals(BUCKETING);
+	    IngestBucketer bucketer = ingest
+	            ? new IngestBucketer(new BucketIndex(FIRST_BUCKET_ID), null, CrashReporterDataLoaderV2::createBucketDocument)
+	            : null;
+	    // Bucket totals over the whole dataset; only touched by the single writer thread
+	    Map<Integer, IngestBucketer.BucketDelta> bucketTotals = new TreeMap<>();
+	    ThreadLocal<RawCrashPackageEncoder> encoders = ThreadLocal.withInitial(
+	            () -> new RawCrashPackageEncoder(CLOB_CACHE, PAYLOAD_MODEL, CLOB_ENCODING));
+
+	    System.out.println("Generating " + NUM_DOCS + " crash packages (seed " + GENERATOR_SEED + ", " +
+	            BUCKETING + " bucketing) into " + datasetDir.toAbsolutePath() + "...");
+	    long start = System.nanoTime();
+	    try (BsonDatasetWriter crashWriter = new BsonDatasetWriter(datasetDir.resolve(CRASH_DATASET))) {
+	        CrashDocumentPipeline<IngestBucketer.Batch<RawBsonDocument>> pipeline = new CrashDocumentPipeline<>(
+	                ingest ? 1 : GENERATOR_THREADS, 1, INSERT_QUEUE_CAPACITY, GENERATOR_SEED);
+	        // The commit watermark bounds how many out-of-order batches the writer has to hold back
+	        pipeline.run(NUM_DOCS, BATCH_SIZE, 0,
+	                crashBatchGenerator(bucketer, null,
+	                        (i, appSubDoc, module, offset, bucketId, random) ->
+	                                encoders.get().encode(i, appSubDoc, module, offset, bucketId, random)),
+	                batch -> {
+	                    crashWriter.write((batch.firstId - 1) / BATCH_SIZE, batch.crashDocs);
+	                    for (Map.Entry<Integer, IngestBucketer.BucketDelta> entry : batch.bucketDeltas.entrySet()) {
+	                        IngestBucketer.BucketDelta delta = entry.getValue();
+	                        IngestBucketer.BucketDelta total = bucketTotals.computeIfAbsent(entry.getKey(),
+	                                bucketId -> new IngestBucketer.BucketDelta(delta.appDoc, delta.module, delta.offset));
+	                        total.crashCount += delta.crashCount;
+	                        if (total.lastCrashDate == null || delta.lastCrashDate.after(total.lastCrashDate)) {
+	                            total.lastCrashDate = delta.lastCrashDate;
+	                        }
+	                    }
+	                },
+	                nextBatch -> { }, INSERT_QUEUE_CAPACITY * 2);
+	        System.out.println("Wrote " + crashWriter.documentCount() + " crash packages, " +
+	                crashWriter.byteCount() / (1024 * 1024) + " MB");
+	    }
+
+	    try (BsonDatasetWriter bucketWriter = new BsonDatasetWriter(datasetDir.resolve(BUCKET_DATASET))) {
+	        DocumentCodec codec = new DocumentCodec();
+	        List<RawBsonDocument> bucketDocs = new ArrayList<>(bucketTotals.size());
+	        for (Map.Entry<Integer, IngestBucketer.BucketDelta> entry : bucketTotals.entrySet()) {
+	            IngestBucketer.BucketDelta total = entry.getValue();
+	            Document bucketDoc = createBucketDocument(entry.getKey(), total.appDoc, total.module, total.offset)
+	                    .append("CRASH_COUNT", total.crashCount)
+	                    .append("UNIQUE_CRASH_USER_STEPS_COUNT", total.crashCount)
+	                    .append("LAST_CRASH_DATE", total.lastCrashDate);
+	            bucketDocs.add(new RawBsonDocument(bucketDoc, codec));
+	        }
+	        bucketWriter.write(0, bucketDocs);
+	        System.out.println("Wrote " + bucketWriter.documentCount() + " buckets");
+	    }
+	    System.out.println("Dataset generated in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Loads a dataset written by {@link #generateDataset}: buckets first, then the crash packages,
+	 * sliced straight out of the mapped files. Returns whether the dataset came with its buckets,
+	 * in which case Phase 2 is not needed.
+	 */
+	private static boolean replayDataset(MongoDatabase db, Path datasetDir, ReactiveWriteBackend asyncWrites)
+	        throws IOException {
+	    boolean bucketed;
+	    try (BsonDataset buckets = BsonDataset.open(datasetDir.resolve(BUCKET_DATASET), BATCH_SIZE)) {
+	        bucketed = buckets.documentCount() > 0;
+	        if (bucketed) {
+	            replay(buckets, db.getCollection("CRD_BUCKET_ADOBE", RawBsonDocument.class), asyncWrites);
+	        }
+	    }
+	    try (BsonDataset crashes = BsonDataset.open(datasetDir.resolve(CRASH_DATASET), BATCH_SIZE)) {
+	        replay(crashes, db.getCollection("CRD_CRASH_PKG", RawBsonDocument.class), asyncWrites);
+	    }
+	    return bucketed;
+	}
+
+	private static void replay(BsonDataset dataset, MongoCollection<RawBsonDocument> collection,
+	                           ReactiveWriteBackend asyncWrites) {
+	    System.out.println("Replaying " + dataset + " into " + collection.getNamespace().getCollectionName());
+	    CrashDocumentPipeline<List<RawBsonDocument>> pipeline = new CrashDocumentPipeline<>(
+	            GENERATOR_THREADS, INSERTER_THREADS, INSERT_QUEUE_CAPACITY, GENERATOR_SEED);
+	    CrashDocumentPipeline.BatchGenerator<List<RawBsonDocument>> slicer =
+	            (firstId, count, random) -> dataset.batch((firstId - 1) / BATCH_SIZE);
+	    if (asyncWrites == null) {
+	        pipeline.run(dataset.documentCount(), BATCH_SIZE, slicer, batch -> {
+	            CRASH_BATCH.record(batch.size());
+	            long start = System.nanoTime();
+	            collection.insertMany(batch, WRITE_PROFILE.insertManyOptions());
+	            INSERT_TIMER.recordSince(start);
+	        });
+	    } else {
+	        com.mongodb.reactivestreams.client.MongoCollection<RawBsonDocument> asyncCollection = asyncWrites.collection(
+	                collection.getNamespace().getCollectionName(), RawBsonDocument.class);
+	        pipeline.runAsync(dataset.documentCount(), BATCH_SIZE, 0, slicer, batch -> {
+	            CRASH_BATCH.record(batch.size());
+	            return asyncWrites.insertMany(asyncCollection, batch, WRITE_PROFILE.insertManyOptions());
+	        }, null, 0);
+	    }
+	}
+
+	/**
+	 * A batch as replace-or-insert by ID, so writing it a second time leaves one copy of each crash
+	 */
+	private static <T> List<WriteModel<T>> crashUpserts(IngestBucketer.Batch<T> batch) {
+	    List<WriteModel<T>> upserts = new ArrayList<>(batch.crashDocs.size());
+	    for (int i = 0; i < batch.crashDocs.size(); i++) {
+	        upserts.add(new ReplaceOneModel<>(Filters.eq("ID", batch.firstId + i), batch.crashDocs.get(i),
+	                new ReplaceOptions().upsert(true)));
+	    }
+	    return upserts;
+	}
+
+	/**
+	 * Draws the app, version and build of a crash and returns its APP sub-document
+	 */
+	static Document createAppSubDoc(Random random) {
+	    // Randomly select an app
+	    int appIndex = random.nextInt(ADOBE_APPS.size());
+	    String appName = ADOBE_APPS.get(appIndex);
+	    int versionMajor = 2024;
+	    int versionMinor = random.nextInt(10) + 1; // 1 to 10
+	    String version = versionMajor + "." + versionMinor;
+	    int buildNum = random.nextInt(10) + 1; // 1 to 10
+	    String build = String.valueOf(buildNum);
+
+	    // Derived from (appName, version, build) alone, so it does not depend on which thread drew the app first
+	    int appId = 1000 + appIndex * 100 + (versionMinor - 1) * 10 + (buildNum - 1);
+
+	    return new Document("APP_ID", appId)
+	            .append("NAME", appName)
+	            .append("VERSION", version)
+	            .append("BUILD", build);
+	}
+
+	/**
+	 * Builds crash package {@code i}; BUCKET_ID_ADOBE is only set when a bucket was assigned at ingest
+	 */
+	static Document createCrashDocument(int i, Document appSubDoc, String module, int offset,
+	                                    Integer bucketId, Random random) {
+	    return createCrashDocument(i, appSubDoc, module, offset, bucketId, random, CLOB_CACHE, PAYLOAD_MODEL, CLOB_ENCODING);
+	}
+
+	/**
+	 * Builds crash package {@code i} with the given CLOB payloads, as {@link RawCrashPackageEncoder} takes them
+	 */
+	static Document createCrashDocument(int i, Document appSubDoc, String module, int offset, Integer bucketId,
+	                                    Random random, ClobCache clobCache, PayloadModel payloadModel,
+	                                    ClobEncoding clobEncoding) {
+	    String appName = appSubDoc.getString("NAME");
+
+	    // CRASH PACKAGE DOCUMENT
+	    Document crashPkgDoc = new Document("ID", i)
+	            .append("UNIQUE_CRASH_ID", 30000 + i)
+	            .append("USER_ID", 4000 + i)
+	            .append("PLATFORM_ID", 2)
+	            .append("MODULE", module)
+	            .append("OFFSET", offset)
+	            .append("EXCEPTION", clobValue(ClobField.EXCEPTION, appName, random, clobCache, payloadModel, clobEncoding))
+	            .append("REPROSTEPS", clobValue(ClobField.REPROSTEPS, appName, random, clobCache, payloadModel, clobEncoding))
+	            .append("NOTES", clobValue(ClobField.NOTES, appName, random, clobCache, payloadModel, clobEncoding))
+	            .append("EMAILDATE", Date.from(Instant.now()))
+	            .append("CRASHDATE", Date.from(Instant.now()))
+	            .append("CREATED", new Date())
+	            .append("PACKAGE", clobValue(ClobField.PACKAGE, appName, random, clobCache, payloadModel, clobEncoding))
+	            .append("CHECKSUM", 987654321 + i)
+	            .append("USER_EMAIL", "user" + i + "@example.com")
+	            .append("CRASH_GUID", "guid-crash-" + i)
+	            .append("USER_GUID", "guid-user-" + i)
+	            .append("BUCKET_ID_TOP", 10 + i);
+	    if (bucketId != null) {
+	        crashPkgDoc.append("BUCKET_ID_ADOBE", bucketId);
+	    }
+	    crashPkgDoc.append("MS_EVENT_ID", 500 + i)
+	            .append("MS_EVENT_TYPE", "crash")
+	            .append("MS_CAB_ID", 600 + i)
+	            .append("PATH", "C:/Users/user/Documents/crashes/crash" + i + ".dmp")
+	            .append("APP", appSubDoc)
+	            .append("DMP_PATH", "/dumps/" + appName.replaceAll(" ", "") + "_" + i + ".dmp")
+	            .append("MS_EVENT_NAME", "CrashEvent-" + appName.replaceAll(" ", ""))
+	            .append("OLD_CRASH_ID", null)
+	            .append("OLD_BUCKET_ID", null)
+	            .append("EXPLOITABLE", "NO")
+	            .append("ISSUE_ID", 999999 + i)
+	            .append("ISSUEMAKER_HOST", "crash-reporter.adobe.internal")
+	            .append("ISSUEMAKER_TIMESTAMP", new Date())
+	            .append("ISSUEMAKER_STATUS", "Open")
+	            .append("CLEAN_COMMENT", clobValue(ClobField.CLEAN_COMMENT, appName, random, clobCache, payloadModel, clobEncoding))
+	            .append("COMMENT_SCORE", 8.9)
+	            .append("CR_DUNAMIS_SESSIONID", "sess-" + i)
+	            .append("SPLUNK_URL", "https://splunk.adobe.com/crashes/" + i)
+	            .append("APPLOG_PATH", "/logs/adobe/" + i + "/app.log");
+
+	    return crashPkgDoc;
+	}
+
+	/**
+	 * Phase 2: Process crash documents to create buckets and update crash documents
+	 * Uses batching to handle large datasets efficiently
+	 * With a checkpoint, progress is saved after every batch and a resumed run continues after the last one
+	 * With {@code asyncWrites} a batch's writes run while the next batch is read and bucketed
+	 * With {@code rollups} every batch also updates the hourly rollups
+	 */
+	private static void createBucketsAndUpdateCrashDocuments(MongoClient mongoClient, MongoDatabase db,
+	                                                         LoaderCheckpoint checkpoint, ReactiveWriteBackend asyncWrites,
+	                                                         CrashRollupStage rollups) {
+	    MongoCollection<Document> bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+	    MongoCollection<Document> crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+
+	    if (checkpoint != null) {
+	        checkpoint.checkPhase2Engine("client");
+	        if (checkpoint.isComplete("PHASE2")) {
+	            System.out.println("Run '" + checkpoint.runId() + "' is already bucketed.");
+	            return;
+	        }
+	    }
+
+	    // Existing buckets are loaded once; new IDs continue after the highest one in the database
+	    BucketIndex bucketIndex = BucketIndex.load(bucketCollection,
+	            checkpoint == null ? FIRST_BUCKET_ID : checkpoint.firstBucketId(FIRST_BUCKET_ID));
+	    int createdBucketCount = 0;
+	    int processedCount = 0;
+	    int batchCount = 0;
+
+	    // Process documents in batches to avoid loading all into memory
+	    int batchSize = BATCH_SIZE;
+	    long totalDocCount = crashPkgCollection.countDocuments();
+	    System.out.println("Total crash documents to process: " + totalDocCount);
+
+	    // Keyset paging on ID needs an index, otherwise every batch is a collection scan plus sort
+	    crashPkgCollection.createIndex(Indexes.ascending("ID"));
+
+	    // Bucket inserts, counter updates and crash assignments are sent in bulk once per batch
+	    BucketWriteStage writeStage = new BucketWriteStage(crashPkgCollection, bucketCollection, asyncWrites, rollups);
+
+	    // Process in batches, resuming each one after the last ID seen
+	    boolean hasMoreDocs = true;
+	    int lastSeenId = checkpoint == null ? Integer.MIN_VALUE : checkpoint.phase2LastId(Integer.MIN_VALUE);
+	    if (lastSeenId != Integer.MIN_VALUE) {
+	        System.out.println("Resuming Phase 2 after crash ID " + lastSeenId);
+	    }
+
+	    while (hasMoreDocs) {
+	        // Get a batch of documents
+	        int batchAfterId = lastSeenId;
+	        List<Document> crashDocsBatch = nextCrashBatch(crashPkgCollection, lastSeenId, batchSize);
+
+	        // Track if we found any documents in this batch
+	        boolean foundDocsInBatch = false;
+
+	        // Process each document in the batch
+	        for (Document crashDoc : crashDocsBatch) {
+	            foundDocsInBatch = true;
+
+	            // Find or create the crash's bucket and stage the writes for it
+	            if (bucketCrash(bucketIndex, writeStage, crashDoc)) {
+	                createdBucketCount++;
+	            }
+
+	            lastSeenId = crashDoc.getInteger("ID");
+	            processedCount++;
+	        }
+
+	        // Batch update all crash documents with their bucket IDs
+	        writeStage.flush(checkpoint == null ? null : checkpoint.batchMarker("bucket", batchAfterId));
+	        if (checkpoint != null && foundDocsInBatch) {
+	            // Progress may only be saved once the batch is written
+	            writeStage.awaitWrites();
+	            checkpoint.savePhase2(lastSeenId, bucketIndex);
+	        }
+
+	        // If we didn't find any docs in this batch, we're done
+	        if (!foundDocsInBatch) {
+	            hasMoreDocs = false;
+	        } else {
+	            // A short batch means the scan reached the end of the collection
+	            hasMoreDocs = crashDocsBatch.size() == batchSize;
+	            batchCount++;
+
+	            // Print progress
+	            System.out.println("Processed batch #" + batchCount +
+	                    " - Total: " + processedCount + "/" + totalDocCount +
+	                    " - Unique buckets: " + bucketIndex.size());
+	        }
+	    }
+
+	    writeStage.awaitWrites();
+	    if (checkpoint != null) {
+	        checkpoint.markComplete("PHASE2");
+	    }
+
+	    writeStage.printSummary();
+	    System.out.println(bucketIndex.heapStats());
+	    System.out.println("Bucketing complete. Processed " + processedCount +
+	            " crash documents and created " + createdBucketCount + " new buckets" +
+	            " (" + bucketIndex.size() + " unique buckets in total).");
+	}
+
+	/**
+	 * Buckets one projected crash document: looks up or allocates its bucket and stages the
+	 * bucket insert or counter update plus the crash assignment. Returns whether the bucket is new.
+	 */
+	static boolean bucketCrash(BucketIndex bucketIndex, BucketWriteStage writeStage, Document crashDoc) {
+	    // Extract the attributes needed for bucketing
+	    Document appDoc = (Document) crashDoc.get("APP");
+	    String product = appDoc.getString("NAME");
+	    String version = appDoc.getString("VERSION");
+	    String build = appDoc.getString("BUILD");
+	    String module = crashDoc.getString("MODULE");
+	    int offset = crashDoc.getInteger("OFFSET");
+
+	    // Get or create a bucket ID for this key, without building a key object per crash
+	    boolean created = false;
+	    int bucketId = bucketIndex.lookup(product, version, build, module, offset);
+	    if (bucketId == BucketIndex.NO_BUCKET) {
+	        // Create a new bucket
+	        bucketId = bucketIndex.allocate(product, version, build, module, offset);
+	        created = true;
+
+	        // Insert the new bucket with the rest of the batch
+	        writeStage.createBucket(createBucketDocument(bucketId, appDoc, module, offset));
+	    } else {
+	        // Bucket exists, increment its crash count
+	        writeStage.incrementBucket(bucketId);
+	    }
+
+	    // Stage the bucket assignment for the batch update
+	    writeStage.assign(crashDoc.getInteger("ID"), bucketId);
+	    writeStage.countRollup(bucketId, appDoc, crashDoc.getDate("CRASHDATE"));
+	    return created;
+	}
+
+	/**
+	 * Builds a new bucket document, counting the crash that created it
+	 */
+	static Document createBucketDocument(int bucketId, Document appDoc, String module, int offset) {
+	    String product = appDoc.getString("NAME");
+	    return new Document("ID", bucketId)
+	            .append("MODULE_ID", 200 + bucketId)
+	            .append("APP", appDoc)
+	            .append("NAME", "Crash in " + product)
+	            .append("OFFSET", offset)
+	            .append("BUGNUM", "ADBE-CR-" + bucketId)
+	            .append("SOLUTION_URL", "https://adobe.com/solution/" + bucketId)
+	            .append("BUCKET_CREATED", new Date())
+	            .append("STATUS", 1)
+	            .append("PARENT_BUCKET", null)
+	            .append("DEVNOTES", "Issue while using " + product + " under high load.")
+	            .append("CRASH_COUNT", 1) // Start with 1 crash
+	            .append("LAST_CRASH_DATE", new Date())
+	            .append("STACK_ELEMENT", "com.adobe." + product.replaceAll(" ", "") + "::renderFunction")
+	            .append("MODULE_NAME", module)
+	            .append("USER_STEPS", "Y")
+	            .append("UNIQUE_CRASH_USER_STEPS_COUNT", 1) // Start with 1
+	            .append("PLATFORM", "Windows")
+	            .append("OS_GROUP_IDS", "WIN11,WIN10")
+	            .append("JIRA_ISSUE_IDS", "ADBEJIRA-" + (9000 + bucketId));
+	}
+
+	/**
+	 * Reads the next page of crash documents with an ID greater than {@code afterId}.
+	 * Keyset paging keeps every page an index range scan, unlike skip/limit which
+	 * re-walks all earlier documents, and the projection leaves the CLOB fields behind.
+	 */
+	private static List<Document> nextCrashBatch(MongoCollection<Document> crashPkgCollection,
+	                                             int afterId, int batchSize) {
+	    long start = System.nanoTime();
+	    List<Document> crashDocs = crashPkgCollection.find(Filters.gt("ID", afterId))
+	            .projection(BUCKETING_PROJECTION)
+	            .sort(Sorts.ascending("ID"))
+	            .limit(batchSize)
+	            .batchSize(batchSize)
+	            .into(new ArrayList<>(batchSize));
+	    FIND_TIMER.recordSince(start);
+	    return crashDocs;
+	}
+
+	/**
+	 * Returns the cached payload for a CLOB field in {@code clobEncoding}
+	 */
+	private static Object clobValue(ClobField field, String appName, Random random, ClobCache clobCache,
+	                                PayloadModel payloadModel, ClobEncoding clobEncoding) {
+	    int sizeClass = payloadModel.nextSizeClass(field, random);
+	    payloadModel.countStored(field, clobCache.storedBytes(field, appName, sizeClass, clobEncoding));
+	    return clobCache.value(field, appName, sizeClass, clobEncoding);
+	}
+
+	/**
+	 * Builds a CLOB of exactly {@code targetBytes} bytes once encoded as UTF-8, the way BSON stores it
+	 */
+	static String getClob(String base, int targetBytes) {
+        int baseBytes = base.getBytes(StandardCharsets.UTF_8).length;
+        StringBuilder sb = new StringBuilder(targetBytes);
+        int bytes = 0;
+        // Fill with repeated base string while a whole copy still fits
+        while (baseBytes > 0 && bytes + baseBytes <= targetBytes) {
+            sb.append(base);
+            bytes += baseBytes;
+        }
+        // Pad with single-byte 'X' to reach the target exactly
+        for (; bytes < targetBytes; bytes++) {
+            sb.append('X');
+        }
+        return sb.toString();
+    }
+}
+
@@ -0,0 +1,238 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hourly crash counters per bucket and app build, kept in CRD_CRASH_ROLLUP_HOURLY next to
+ * the running totals on the buckets, so "top buckets for an app in the last hours" reads a
+ * few rollup documents instead of scanning CRD_CRASH_PKG. See {@link TopBucketQuery}.
+ *
+ * Crashes are counted into a {@link Deltas} per batch as they are bucketed, and written
+ * with the batch as one $inc upsert per (bucket, app, version, build, hour). A rollup's
+ * _id is that key, so concurrent batches meet on the same document. In checkpointed runs
+ * the upserts carry the batch marker the bucket counters get, so a replayed batch is
+ * counted once here as well.
+ */
+class CrashRollupStage {
+
+    static final String COLLECTION = "CRD_CRASH_ROLLUP_HOURLY";
+    static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final LoaderMetrics.Stat UPSERT_TIMER = LoaderMetrics.timer("mongo.bulkWrite.rollupUpserts");
+    private static final LoaderMetrics.Stat UPSERT_OPS = LoaderMetrics.distribution("batch.rollupUpserts");
+    private static final LongAdder UPSERT_RETRIES = LoaderMetrics.counter("rollupUpserts.retried");
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    /**
+     * Rollup counters of one batch. Not thread safe, like the batch it belongs to.
+     */
+    static final class Deltas {
+        private final Map<Key, Delta> deltas = new LinkedHashMap<>();
+
+        void count(int bucketId, Document appDoc, Date crashDate) {
+            Key key = new Key(bucketId, appDoc.getInteger("APP_ID"), appDoc.getString("VERSION"),
+                    appDoc.getString("BUILD"), hourOf(crashDate.getTime()));
+            Delta delta = deltas.get(key);
+            if (delta == null) {
+                delta = new Delta(appDoc);
+                deltas.put(key, delta);
+            }
+            delta.crashCount++;
+            if (delta.lastCrashDate == null || crashDate.after(delta.lastCrashDate)) {
+                delta.lastCrashDate = crashDate;
+            }
+        }
+
+        /**
+         * Moves the counters of the bucket IDs in {@code bucketIds} to the IDs they map to.
+         */
+        void remapBuckets(Map<Integer, Integer> bucketIds) {
+            if (bucketIds.isEmpty()) {
+                return;
+            }
+            Map<Key, Delta> remapped = new LinkedHashMap<>();
+            for (Map.Entry<Key, Delta> entry : deltas.entrySet()) {
+                Key key = entry.getKey();
+                Integer bucketId = bucketIds.get(key.bucketId);
+                if (bucketId != null) {
+                    key = new Key(bucketId, key.appId, key.version, key.build, key.hour);
+                }
+                Delta delta = entry.getValue();
+                Delta merged = remapped.get(key);
+                if (merged == null) {
+                    remapped.put(key, delta);
+                } else {
+                    merged.crashCount += delta.crashCount;
+                    if (delta.lastCrashDate.after(merged.lastCrashDate)) {
+                        merged.lastCrashDate = delta.lastCrashDate;
+                    }
+                }
+            }
+            deltas.clear();
+            deltas.putAll(remapped);
+        }
+
+        boolean isEmpty() {
+            return deltas.isEmpty();
+        }
+
+        void clear() {
+            deltas.clear();
+        }
+    }
+
+    private static final class Key {
+        final int bucketId;
+        final Integer appId;
+        final String version;
+        final String build;
+        final long hour;
+
+        Key(int bucketId, Integer appId, String version, String build, long hour) {
+            this.bucketId = bucketId;
+            this.appId = appId;
+            this.version = version;
+            this.build = build;
+            this.hour = hour;
+        }
+
+        // Field order matters for an _id sub-document, so it is only ever built here
+        Document toId() {
+            return new Document("BUCKET_ID", bucketId)
+                    .append("APP_ID", appId)
+                    .append("VERSION", version)
+                    .append("BUILD", build)
+                    .append("HOUR", new Date(hour));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return bucketId == other.bucketId && hour == other.hour && Objects.equals(appId, other.appId)
+                    && Objects.equals(version, other.version) && Objects.equals(build, other.build);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bucketId, appId, version, build, hour);
+        }
+    }
+
+    private static final class Delta {
+        final Document appDoc;
+        int crashCount;
+        Date lastCrashDate;
+
+        Delta(Document appDoc) {
+            this.appDoc = appDoc;
+        }
+    }
+
+    private final MongoCollection<Document> rollupCollection;
+
+    CrashRollupStage(MongoDatabase db) {
+        this.rollupCollection = db.getCollection(COLLECTION);
+    }
+
+    MongoCollection<Document> collection() {
+        return rollupCollection;
+    }
+
+    /**
+     * Start of the hour {@code millis} falls in, in UTC.
+     */
+    static long hourOf(long millis) {
+        return millis - Math.floorMod(millis, HOUR_MILLIS);
+    }
+
+    /**
+     * Builds the index {@link TopBucketQuery} reads through: app equality first, then the hour range.
+     */
+    void createIndexes() {
+        rollupCollection.createIndexes(Collections.singletonList(
+                new IndexModel(Indexes.ascending("APP.NAME", "APP.VERSION", "HOUR"))));
+    }
+
+    /**
+     * The upserts that add {@code deltas} to the rollups, tagged with batch {@code marker} if set.
+     */
+    List<WriteModel<Document>> upserts(Deltas deltas, String marker) {
+        List<WriteModel<Document>> upserts = new ArrayList<>(deltas.deltas.size());
+        for (Map.Entry<Key, Delta> entry : deltas.deltas.entrySet()) {
+            Key key = entry.getKey();
+            Delta delta = entry.getValue();
+            upserts.add(new UpdateOneModel<>(
+                    LoaderCheckpoint.unlessCounted(Filters.eq("_id", key.toId()), marker),
+                    LoaderCheckpoint.recordCounted(Updates.combine(
+                            Updates.setOnInsert("BUCKET_ID", key.bucketId),
+                            Updates.setOnInsert("APP", delta.appDoc),
+                            Updates.setOnInsert("HOUR", new Date(key.hour)),
+                            Updates.inc("CRASH_COUNT", delta.crashCount),
+                            Updates.max("LAST_CRASH_DATE", delta.lastCrashDate)), marker),
+                    UPSERT));
+        }
+        return upserts;
+    }
+
+    /**
+     * Writes the rollup counters of one batch; safe to call from concurrent inserter threads.
+     */
+    void write(Deltas deltas, String marker) {
+        write(upserts(deltas, marker), marker != null);
+    }
+
+    /**
+     * Runs {@link #upserts}, retrying those that lost an insert race with another inserter thread.
+     */
+    void write(List<WriteModel<Document>> upserts, boolean marked) {
+        if (upserts.isEmpty()) {
+            return;
+        }
+        UPSERT_OPS.record(upserts.size());
+        IngestBucketer.bulkUpsert(rollupCollection, upserts, marked, UPSERT_TIMER, UPSERT_RETRIES);
+    }
+
+    /**
+     * Completes an asynchronous write of marked upserts whose only failures are duplicate keys.
+     * Writes through one stage are chained, so they cannot race each other, and such an upsert
+     * only found a rollup that already counted the batch.
+     */
+    static Void skipCounted(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!(cause instanceof MongoBulkWriteException)) {
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        }
+        for (BulkWriteError writeError : ((MongoBulkWriteException) cause).getWriteErrors()) {
+            if (writeError.getCode() != IngestBucketer.DUPLICATE_KEY) {
+                throw new CompletionException(cause);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,85 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding for one bucketing dimension (product, version, build or module).
+ *
+ * Each distinct value is interned once and given a small dense code, so bucket keys can
+ * be packed into a long instead of holding a String per dimension. Lookups of known
+ * values are lock free; only interning a new value takes the dictionary lock.
+ */
+class DimensionDictionary {
+
+    static final int NO_CODE = -1;
+
+    // Codes are packed into 16 bits of a bucket key
+    static final int MAX_CODES = 1 << 16;
+
+    // ConcurrentHashMap does not accept null keys, a missing dimension is stored under this one
+    private static final String NULL_VALUE = new String("<null>");
+
+    private final String name;
+    private final Map<String, Integer> codesByValue = new ConcurrentHashMap<>();
+    private final List<String> valuesByCode = new ArrayList<>();
+    private long valueChars = 0;
+
+    DimensionDictionary(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the code for {@code value}, or {@link #NO_CODE} if it has never been seen.
+     */
+    int find(String value) {
+        Integer code = codesByValue.get(value == null ? NULL_VALUE : value);
+        return code == null ? NO_CODE : code;
+    }
+
+    /**
+     * Returns the code for {@code value}, interning it first if needed.
+     */
+    int intern(String value) {
+        int code = find(value);
+        return code != NO_CODE ? code : internSlow(value);
+    }
+
+    private synchronized int internSlow(String value) {
+        String key = value == null ? NULL_VALUE : value;
+        Integer code = codesByValue.get(key);
+        if (code != null) {
+            return code;
+        }
+        if (valuesByCode.size() == MAX_CODES) {
+            throw new IllegalStateException("Too many distinct " + name + " values for a bucket key (max " + MAX_CODES + ")");
+        }
+        int newCode = valuesByCode.size();
+        valuesByCode.add(value);
+        if (value != null) {
+            valueChars += value.length();
+        }
+        // Published last, so a reader that finds the code also sees the value
+        codesByValue.put(key, newCode);
+        return newCode;
+    }
+
+    synchronized String value(int code) {
+        return valuesByCode.get(code);
+    }
+
+    synchronized int size() {
+        return valuesByCode.size();
+    }
+
+    /**
+     * Rough retained size: the interned strings plus one map node, boxed code and
+     * list slot per value.
+     */
+    synchronized long estimatedBytes() {
+        long perValue = 40 + 32 + 16 + 8;
+        return valuesByCode.size() * perValue + valueChars;
+    }
+}
@@ -0,0 +1,287 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assigns crashes to buckets while Phase 1 generates them.
+ *
+ * Every crash package is written once, already carrying BUCKET_ID_ADOBE, so there is no
+ * second pass that re-reads and rewrites the large documents. Bucket counters are
+ * aggregated per generated batch and flushed as one upsert per bucket
+ * ($inc CRASH_COUNT, $max LAST_CRASH_DATE, $setOnInsert for the rest of the bucket)
+ * just before the batch's crash packages are inserted. With a {@link CrashRollupStage}
+ * the batch's hourly rollup counters are written right after the buckets.
+ *
+ * The bucket index is only loaded once, so another writer may since have created one of
+ * the batch's bucket keys under its own ID. The upsert then fails on the unique bucket key
+ * index; the bucket holding the key is read back and the batch counts into it instead.
+ */
+class IngestBucketer {
+
+    /**
+     * Builds the full bucket document for a newly seen bucket key.
+     */
+    interface BucketDocumentFactory {
+        Document create(int bucketId, Document appDoc, String module, int offset);
+    }
+
+    /**
+     * A batch of generated crash packages and the bucket counters they add up to.
+     * Without an ingest bucketer the counters simply stay empty.
+     */
+    static final class Batch<T> {
+        final int firstId;
+        final List<T> crashDocs;
+        final Map<Integer, BucketDelta> bucketDeltas = new LinkedHashMap<>();
+        final CrashRollupStage.Deltas rollupDeltas = new CrashRollupStage.Deltas();
+        // Set in checkpointed runs so a replayed batch is not counted twice, see LoaderCheckpoint
+        String marker;
+
+        Batch(int firstId, int capacity) {
+            this.firstId = firstId;
+            this.crashDocs = new ArrayList<>(capacity);
+        }
+    }
+
+    static final class BucketDelta {
+        final Document appDoc;
+        final String module;
+        final int offset;
+        int crashCount;
+        Date lastCrashDate;
+
+        BucketDelta(Document appDoc, String module, int offset) {
+            this.appDoc = appDoc;
+            this.module = module;
+            this.offset = offset;
+        }
+    }
+
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+    private static final LoaderMetrics.Stat UPSERT_TIMER = LoaderMetrics.timer("mongo.bulkWrite.bucketUpserts");
+    private static final LoaderMetrics.Stat UPSERT_OPS = LoaderMetrics.distribution("batch.bucketUpserts");
+    private static final LongAdder UPSERT_RETRIES = LoaderMetrics.counter("bucketUpserts.retried");
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+    static final int DUPLICATE_KEY = 11000;
+
+    private final BucketIndex bucketIndex;
+    private final MongoCollection<Document> bucketCollection;
+    private final BucketDocumentFactory bucketDocumentFactory;
+    private final CrashRollupStage rollups;
+
+    IngestBucketer(BucketIndex bucketIndex, MongoCollection<Document> bucketCollection,
+                   BucketDocumentFactory bucketDocumentFactory) {
+        this(bucketIndex, bucketCollection, bucketDocumentFactory, null);
+    }
+
+    /**
+     * A bucketer that also maintains the hourly rollups through {@code rollups}, unless it is null.
+     */
+    IngestBucketer(BucketIndex bucketIndex, MongoCollection<Document> bucketCollection,
+                   BucketDocumentFactory bucketDocumentFactory, CrashRollupStage rollups) {
+        this.bucketIndex = bucketIndex;
+        this.bucketCollection = bucketCollection;
+        this.bucketDocumentFactory = bucketDocumentFactory;
+        this.rollups = rollups;
+    }
+
+    BucketIndex bucketIndex() {
+        return bucketIndex;
+    }
+
+    /**
+     * Returns the bucket ID for a crash, creating the bucket if its key is new, and counts
+     * the crash in {@code batch}. Called from the Phase 1 generator threads and the
+     * parallel Phase 2 workers; the index allocates atomically, so no lock is needed here.
+     */
+    int assign(Batch<?> batch, Document appDoc, String module, int offset, Date crashDate) {
+        String product = appDoc.getString("NAME");
+        String version = appDoc.getString("VERSION");
+        String build = appDoc.getString("BUILD");
+
+        int bucketId = bucketIndex.lookupOrAllocate(product, version, build, module, offset);
+
+        BucketDelta delta = batch.bucketDeltas.get(bucketId);
+        if (delta == null) {
+            delta = new BucketDelta(appDoc, module, offset);
+            batch.bucketDeltas.put(bucketId, delta);
+        }
+        delta.crashCount++;
+        if (delta.lastCrashDate == null || crashDate.after(delta.lastCrashDate)) {
+            delta.lastCrashDate = crashDate;
+        }
+        if (rollups != null) {
+            batch.rollupDeltas.count(bucketId, appDoc, crashDate);
+        }
+        return bucketId;
+    }
+
+    /**
+     * Upserts the bucket counters of one batch. Called from the inserter threads before the
+     * batch's crash packages are inserted, so a crash never references a missing bucket.
+     * Buckets that already counted a marked batch are left alone.
+     *
+     * @return the batch's bucket IDs whose key another writer had already created, mapped to
+     *         that writer's bucket ID. Their counters went to the existing buckets and the
+     *         index now points the keys at them; crashes assigned to the old IDs have to be
+     *         moved by the caller.
+     */
+    Map<Integer, Integer> writeBuckets(Batch<?> batch) {
+        if (batch.bucketDeltas.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        List<Integer> bucketIds = new ArrayList<>(batch.bucketDeltas.size());
+        List<WriteModel<Document>> upserts = new ArrayList<>(batch.bucketDeltas.size());
+        for (Map.Entry<Integer, BucketDelta> entry : batch.bucketDeltas.entrySet()) {
+            bucketIds.add(entry.getKey());
+            upserts.add(bucketUpsert(entry.getKey(), entry.getValue(), batch.marker));
+        }
+        UPSERT_OPS.record(upserts.size());
+
+        Map<Integer, Integer> remapped = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        try {
+            bucketCollection.bulkWrite(upserts, UNORDERED);
+        } catch (MongoBulkWriteException e) {
+            List<WriteModel<Document>> retries = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                int bucketId = bucketIds.get(error.getIndex());
+                WriteModel<Document> retry = resolveDuplicate(bucketId, batch.bucketDeltas.get(bucketId),
+                        batch.marker, remapped);
+                if (retry != null) {
+                    retries.add(retry);
+                }
+            }
+            UPSERT_RETRIES.add(retries.size());
+            if (!retries.isEmpty()) {
+                bucketCollection.bulkWrite(retries, UNORDERED);
+            }
+        }
+        UPSERT_TIMER.recordSince(start);
+
+        if (rollups != null) {
+            batch.rollupDeltas.remapBuckets(remapped);
+            rollups.write(batch.rollupDeltas, batch.marker);
+        }
+        return remapped;
+    }
+
+    private WriteModel<Document> bucketUpsert(int bucketId, BucketDelta delta, String marker) {
+        Document bucketDoc = bucketDocumentFactory.create(bucketId, delta.appDoc, delta.module, delta.offset);
+        // Counters are maintained by $inc/$max, everything else only matters on insert
+        bucketDoc.remove("ID");
+        bucketDoc.remove("CRASH_COUNT");
+        bucketDoc.remove("UNIQUE_CRASH_USER_STEPS_COUNT");
+        bucketDoc.remove("LAST_CRASH_DATE");
+
+        return new UpdateOneModel<>(
+                LoaderCheckpoint.unlessCounted(Filters.eq("ID", bucketId), marker),
+                LoaderCheckpoint.recordCounted(Updates.combine(
+                        new Document("$setOnInsert", bucketDoc),
+                        Updates.inc("CRASH_COUNT", delta.crashCount),
+                        Updates.inc("UNIQUE_CRASH_USER_STEPS_COUNT", delta.crashCount),
+                        Updates.max("LAST_CRASH_DATE", delta.lastCrashDate)), marker),
+                UPSERT);
+    }
+
+    /**
+     * Settles a bucket upsert that hit the unique bucket key index by reading the bucket that
+     * holds the key. Under the same ID it is either an insert race with another inserter
+     * thread, retried as an update, or a marked batch the bucket already counted. Under
+     * another ID, another writer created the key: the index and the batch move to its ID.
+     *
+     * @return the upsert to retry, or null if the bucket already counted the batch
+     */
+    private WriteModel<Document> resolveDuplicate(int bucketId, BucketDelta delta, String marker,
+                                                  Map<Integer, Integer> remapped) {
+        String product = delta.appDoc.getString("NAME");
+        String version = delta.appDoc.getString("VERSION");
+        String build = delta.appDoc.getString("BUILD");
+        Document existing = bucketCollection.find(bucketKeyFilter(product, version, build, delta.module, delta.offset))
+                .projection(Projections.include("ID", LoaderCheckpoint.MARKER_FIELD))
+                .first();
+        if (existing == null) {
+            // Removed again in the meantime, so the upsert can simply insert it
+            return bucketUpsert(bucketId, delta, marker);
+        }
+        Integer existingId = existing.getInteger("ID");
+        if (existingId == null) {
+            throw new IllegalStateException("Bucket " + product + " " + version + " " + build + " " +
+                    delta.module + "+" + delta.offset + " exists without an ID");
+        }
+        if (existingId != bucketId) {
+            bucketIndex.remap(product, version, build, delta.module, delta.offset, existingId);
+            remapped.put(bucketId, existingId);
+        }
+        List<String> counted = existing.getList(LoaderCheckpoint.MARKER_FIELD, String.class);
+        if (marker != null && counted != null && counted.contains(marker)) {
+            return null;
+        }
+        return bucketUpsert(existingId, delta, marker);
+    }
+
+    private static Bson bucketKeyFilter(String product, String version, String build, String module, int offset) {
+        return Filters.and(Filters.eq("APP.NAME", product), Filters.eq("APP.VERSION", version),
+                Filters.eq("APP.BUILD", build), Filters.eq("MODULE_NAME", module), Filters.eq("OFFSET", offset));
+    }
+
+    /**
+     * Runs the upserts, retrying those that lost an insert race with another inserter thread:
+     * by then the document exists and the retry simply updates it.
+     *
+     * With batch markers a document that already counted the batch does not match the filter
+     * either, so its upsert also ends in a duplicate key. The race is settled by the first
+     * attempt, so a duplicate key on the retry means exactly that and is skipped.
+     */
+    static void bulkUpsert(MongoCollection<Document> collection, List<WriteModel<Document>> upserts, boolean marked,
+                           LoaderMetrics.Stat timer, LongAdder retried) {
+        long start = System.nanoTime();
+        try {
+            collection.bulkWrite(upserts, UNORDERED);
+            timer.recordSince(start);
+        } catch (MongoBulkWriteException e) {
+            List<WriteModel<Document>> retries = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                retries.add(upserts.get(error.getIndex()));
+            }
+            retried.add(retries.size());
+            try {
+                collection.bulkWrite(retries, UNORDERED);
+            } catch (MongoBulkWriteException retryError) {
+                for (BulkWriteError error : retryError.getWriteErrors()) {
+                    if (!marked || error.getCode() != DUPLICATE_KEY) {
+                        throw retryError;
+                    }
+                }
+            }
+            timer.recordSince(start);
+        }
+    }
+}
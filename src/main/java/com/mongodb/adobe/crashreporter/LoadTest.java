@@ -0,0 +1,389 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bson.Document;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for stress-testing a cluster with crash traffic.
+ *
+ * Operations are scheduled at a fixed target rate: operation k is due at
+ * start + k / rate, whichever worker picks it up. Latency is measured from that due
+ * time, not from when a worker got round to it, so time an operation spent queued behind
+ * a slow one is counted (coordinated omission correction). Service time, from actual
+ * start to end, is recorded separately. A run whose workers cannot keep up shows it as
+ * growing latency rather than as a quietly lower rate.
+ *
+ * The mix is writes (a new crash package), reads (one crash package by ID) and, as a
+ * share of the reads, triage lookups (a bucket by ID plus its first crashes by
+ * BUCKET_ID_ADOBE). Every report interval a line per operation type goes to stdout and
+ * to a CSV or, for a .json path, JSON lines file.
+ */
+class LoadTest {
+
+    enum Operation {
+        WRITE, READ, BUCKET_LOOKUP
+    }
+
+    /**
+     * Builds crash package {@code id} for the write operations.
+     */
+    interface CrashFactory {
+        Document create(int id, Random random);
+    }
+
+    /**
+     * Load test knobs, read from {@code -Dcrash.loadTest.*}.
+     */
+    static final class Settings {
+        final double targetRate;
+        final int concurrency;
+        final long durationSeconds;
+        final double readRatio;
+        final double bucketLookupRatio;
+        final long reportIntervalSeconds;
+        final String outputPath;
+
+        Settings(double targetRate, int concurrency, long durationSeconds, double readRatio,
+                 double bucketLookupRatio, long reportIntervalSeconds, String outputPath) {
+            if (targetRate <= 0 || concurrency < 1 || durationSeconds < 1 || reportIntervalSeconds < 1) {
+                throw new IllegalArgumentException("Load test rate, concurrency, duration and report interval must be positive");
+            }
+            if (readRatio < 0 || readRatio > 1 || bucketLookupRatio < 0 || bucketLookupRatio > 1) {
+                throw new IllegalArgumentException("Load test read and bucket lookup ratios must be between 0 and 1");
+            }
+            this.targetRate = targetRate;
+            this.concurrency = concurrency;
+            this.durationSeconds = durationSeconds;
+            this.readRatio = readRatio;
+            this.bucketLookupRatio = bucketLookupRatio;
+            this.reportIntervalSeconds = reportIntervalSeconds;
+            this.outputPath = outputPath;
+        }
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Double.parseDouble(System.getProperty("crash.loadTest.rate", "1000")),
+                    Integer.getInteger("crash.loadTest.concurrency", 16),
+                    Long.getLong("crash.loadTest.durationSec", 60L),
+                    Double.parseDouble(System.getProperty("crash.loadTest.readRatio", "0.2")),
+                    Double.parseDouble(System.getProperty("crash.loadTest.bucketLookupRatio", "0")),
+                    Long.getLong("crash.loadTest.reportIntervalSec", 10L),
+                    System.getProperty("crash.loadTest.output", "loadtest-" + System.currentTimeMillis() + ".csv"));
+        }
+
+        @Override
+        public String toString() {
+            return targetRate + " ops/sec, " + concurrency + " workers, " + durationSeconds + " s, " +
+                    Math.round(readRatio * 100) + "% reads (" + Math.round(bucketLookupRatio * 100) + "% of them bucket lookups)";
+        }
+    }
+
+    // Latencies are recorded in microseconds, up to an hour, to 3 significant digits
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int TRIAGE_PAGE_SIZE = 50;
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+    private final Settings settings;
+    private final CrashFactory crashFactory;
+    private final long seed;
+
+    private final Map<Operation, Recorder> responseTimes = new EnumMap<>(Operation.class);
+    private final Map<Operation, Recorder> serviceTimes = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> totalResponseTimes = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> totalServiceTimes = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> intervalErrors = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> totalErrors = new EnumMap<>(Operation.class);
+    private final AtomicLong lastErrorLogged = new AtomicLong();
+
+    private AtomicInteger nextCrashId;
+    private int minCrashId;
+    private int maxCrashId;
+    private int minBucketId;
+    private int maxBucketId;
+
+    LoadTest(MongoCollection<Document> crashPkgCollection, MongoCollection<Document> bucketCollection,
+             Settings settings, CrashFactory crashFactory, long seed) {
+        this.crashPkgCollection = crashPkgCollection;
+        this.bucketCollection = bucketCollection;
+        this.settings = settings;
+        this.crashFactory = crashFactory;
+        this.seed = seed;
+        for (Operation operation : Operation.values()) {
+            responseTimes.put(operation, new Recorder(HIGHEST_TRACKABLE_MICROS, 3));
+            serviceTimes.put(operation, new Recorder(HIGHEST_TRACKABLE_MICROS, 3));
+            totalResponseTimes.put(operation, new Histogram(HIGHEST_TRACKABLE_MICROS, 3));
+            totalServiceTimes.put(operation, new Histogram(HIGHEST_TRACKABLE_MICROS, 3));
+            intervalErrors.put(operation, new LongAdder());
+            totalErrors.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Runs the load for the configured duration and prints the overall percentiles.
+     */
+    void run() {
+        prepare();
+        System.out.println("Load test: " + settings + ", writing " + settings.outputPath);
+
+        long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / settings.targetRate));
+        long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        AtomicLong nextOperation = new AtomicLong();
+
+        ExecutorService workers = Executors.newFixedThreadPool(settings.concurrency);
+        try (PrintWriter output = new PrintWriter(new FileWriter(settings.outputPath))) {
+            boolean json = settings.outputPath.endsWith(".json");
+            if (!json) {
+                output.println("timestamp,elapsed_s,operation,count,errors,ops_per_sec," +
+                        "p50_us,p99_us,p999_us,max_us,service_p50_us,service_p99_us,service_p999_us");
+            }
+
+            List<Future<?>> futures = new ArrayList<>(settings.concurrency);
+            for (int w = 0; w < settings.concurrency; w++) {
+                Random random = new Random(seed + w);
+                futures.add(workers.submit(() -> {
+                    while (true) {
+                        long dueNanos = startNanos + nextOperation.getAndIncrement() * intervalNanos;
+                        if (dueNanos >= endNanos) {
+                            return null;
+                        }
+                        // Open loop: wait for the due time, never for the previous operation
+                        long waitNanos;
+                        while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(waitNanos);
+                        }
+                        execute(nextOperation(random), random, dueNanos);
+                    }
+                }));
+            }
+
+            long reportNanos = TimeUnit.SECONDS.toNanos(settings.reportIntervalSeconds);
+            long lastReportNanos = startNanos;
+            for (long nextReport = startNanos + reportNanos; ; nextReport += reportNanos) {
+                boolean finished = awaitWorkers(futures, Math.min(nextReport, endNanos + reportNanos));
+                long now = System.nanoTime();
+                report(output, json, (now - startNanos) / 1e9, (now - lastReportNanos) / 1e9);
+                lastReportNanos = now;
+                if (finished) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write load test output " + settings.outputPath, e);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        printTotals((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    private void prepare() {
+        // Reads address crashes by ID and triage lookups crashes by bucket
+        crashPkgCollection.createIndex(Indexes.ascending("ID"));
+        if (settings.readRatio > 0 && settings.bucketLookupRatio > 0) {
+            crashPkgCollection.createIndex(Indexes.ascending("BUCKET_ID_ADOBE"));
+            bucketCollection.createIndex(Indexes.ascending("ID"));
+        }
+
+        minCrashId = boundaryId(crashPkgCollection, true);
+        maxCrashId = boundaryId(crashPkgCollection, false);
+        minBucketId = boundaryId(bucketCollection, true);
+        maxBucketId = boundaryId(bucketCollection, false);
+        // New crash packages continue after the existing ones
+        nextCrashId = new AtomicInteger(Math.max(maxCrashId, 0) + 1);
+
+        if (settings.readRatio > 0 && maxCrashId < minCrashId) {
+            throw new IllegalStateException("The load test reads crash packages, load some first");
+        }
+        if (settings.readRatio > 0 && settings.bucketLookupRatio > 0 && maxBucketId < minBucketId) {
+            throw new IllegalStateException("The load test looks up buckets, bucket the crash packages first");
+        }
+    }
+
+    // Smallest or largest ID in the collection; an empty collection gives min > max
+    private static int boundaryId(MongoCollection<Document> collection, boolean smallest) {
+        Document doc = collection.find(Filters.exists("ID")).projection(Projections.include("ID"))
+                .sort(smallest ? Sorts.ascending("ID") : Sorts.descending("ID")).first();
+        if (doc == null) {
+            return smallest ? 0 : -1;
+        }
+        return doc.getInteger("ID");
+    }
+
+    private Operation nextOperation(Random random) {
+        if (random.nextDouble() >= settings.readRatio) {
+            return Operation.WRITE;
+        }
+        return random.nextDouble() < settings.bucketLookupRatio ? Operation.BUCKET_LOOKUP : Operation.READ;
+    }
+
+    private void execute(Operation operation, Random random, long dueNanos) {
+        long startNanos = System.nanoTime();
+        try {
+            switch (operation) {
+                case WRITE:
+                    crashPkgCollection.insertOne(crashFactory.create(nextCrashId.getAndIncrement(), random));
+                    break;
+                case READ:
+                    crashPkgCollection.find(Filters.eq("ID", randomId(random, minCrashId, maxCrashId))).first();
+                    break;
+                case BUCKET_LOOKUP:
+                    int bucketId = randomId(random, minBucketId, maxBucketId);
+                    bucketCollection.find(Filters.eq("ID", bucketId)).first();
+                    crashPkgCollection.find(Filters.eq("BUCKET_ID_ADOBE", bucketId))
+                            .projection(CrashReporterDataLoaderV2.BUCKETING_PROJECTION)
+                            .limit(TRIAGE_PAGE_SIZE)
+                            .into(new ArrayList<>(TRIAGE_PAGE_SIZE));
+                    break;
+            }
+        } catch (RuntimeException e) {
+            intervalErrors.get(operation).increment();
+            totalErrors.get(operation).increment();
+            logError(operation, e);
+        }
+        long endNanos = System.nanoTime();
+        responseTimes.get(operation).recordValue(micros(endNanos - dueNanos));
+        serviceTimes.get(operation).recordValue(micros(endNanos - startNanos));
+    }
+
+    private static int randomId(Random random, int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    private static long micros(long nanos) {
+        return Math.min(HIGHEST_TRACKABLE_MICROS, Math.max(0, nanos / 1000));
+    }
+
+    // At most one error line per second, the load keeps running
+    private void logError(Operation operation, RuntimeException e) {
+        long now = System.currentTimeMillis();
+        long last = lastErrorLogged.get();
+        if (now - last >= 1000 && lastErrorLogged.compareAndSet(last, now)) {
+            System.err.println("Load test " + operation + " failed: " + e.getMessage());
+        }
+    }
+
+    // Returns true once every worker is done, or false when the deadline passes first
+    private static boolean awaitWorkers(List<Future<?>> futures, long deadlineNanos) {
+        try {
+            for (Future<?> future : futures) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0 && !future.isDone()) {
+                    return false;
+                }
+                future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            }
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the load test", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Load test worker failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void report(PrintWriter output, boolean json, double elapsedSeconds, double intervalSeconds) {
+        String timestamp = Instant.now().toString();
+        StringBuilder line = new StringBuilder("Load test " + Math.round(elapsedSeconds) + " s:");
+        for (Operation operation : Operation.values()) {
+            Histogram responses = responseTimes.get(operation).getIntervalHistogram();
+            Histogram services = serviceTimes.get(operation).getIntervalHistogram();
+            totalResponseTimes.get(operation).add(responses);
+            totalServiceTimes.get(operation).add(services);
+            long count = responses.getTotalCount();
+            if (count == 0) {
+                continue;
+            }
+            long errorCount = intervalErrors.get(operation).sumThenReset();
+            long opsPerSecond = Math.round(count / Math.max(intervalSeconds, 1e-3));
+
+            line.append(' ').append(operation).append(' ').append(opsPerSecond).append("/s")
+                    .append(" p50=").append(responses.getValueAtPercentile(50))
+                    .append(" p99=").append(responses.getValueAtPercentile(99))
+                    .append(" p999=").append(responses.getValueAtPercentile(99.9)).append(" us");
+            if (errorCount > 0) {
+                line.append(" errors=").append(errorCount);
+            }
+
+            if (json) {
+                output.println(new Document("timestamp", timestamp)
+                        .append("elapsedSeconds", elapsedSeconds)
+                        .append("operation", operation.name())
+                        .append("count", count)
+                        .append("errors", errorCount)
+                        .append("opsPerSecond", opsPerSecond)
+                        .append("latencyMicros", percentiles(responses))
+                        .append("serviceTimeMicros", percentiles(services))
+                        .toJson());
+            } else {
+                output.println(timestamp + "," + String.format("%.1f", elapsedSeconds) + "," + operation + "," +
+                        count + "," + errorCount + "," + opsPerSecond + "," +
+                        responses.getValueAtPercentile(50) + "," + responses.getValueAtPercentile(99) + "," +
+                        responses.getValueAtPercentile(99.9) + "," + responses.getMaxValue() + "," +
+                        services.getValueAtPercentile(50) + "," + services.getValueAtPercentile(99) + "," +
+                        services.getValueAtPercentile(99.9));
+            }
+        }
+        output.flush();
+        System.out.println(line);
+    }
+
+    private static Document percentiles(Histogram histogram) {
+        return new Document("p50", histogram.getValueAtPercentile(50))
+                .append("p99", histogram.getValueAtPercentile(99))
+                .append("p999", histogram.getValueAtPercentile(99.9))
+                .append("max", histogram.getMaxValue());
+    }
+
+    private void printTotals(double elapsedSeconds) {
+        System.out.println("Load test complete after " + String.format("%.1f", elapsedSeconds) + " s" +
+                " (target " + settings.targetRate + " ops/sec). Latency from due time, service time in brackets, in us:");
+        long totalCount = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram responses = totalResponseTimes.get(operation);
+            Histogram services = totalServiceTimes.get(operation);
+            if (responses.getTotalCount() == 0) {
+                continue;
+            }
+            totalCount += responses.getTotalCount();
+            System.out.println("  " + operation + ": " + responses.getTotalCount() + " ops" +
+                    " - p50 " + responses.getValueAtPercentile(50) + " (" + services.getValueAtPercentile(50) + ")" +
+                    ", p99 " + responses.getValueAtPercentile(99) + " (" + services.getValueAtPercentile(99) + ")" +
+                    ", p999 " + responses.getValueAtPercentile(99.9) + " (" + services.getValueAtPercentile(99.9) + ")" +
+                    ", max " + responses.getMaxValue() + " (" + services.getMaxValue() + ")" +
+                    ", " + totalErrors.get(operation).sum() + " errors");
+        }
+        System.out.println("  Achieved " + Math.round(totalCount / elapsedSeconds) + " ops/sec");
+    }
+}
@@ -0,0 +1,227 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Progress of one named loader run, kept in the LOADER_STATE collection so a run that dies
+ * can be started again with the same {@code -Dcrash.runId} and carry on where it stopped.
+ *
+ * Phase 1 records the batch watermark: every batch below it is written. Batches at or
+ * above it may or may not have been written, so they are replayed with ID keyed upserts.
+ * Phase 2 records the last crash ID bucketed, per ID range for the parallel engine. Both
+ * record the bucket ID high-water mark, so a resumed run never hands out an ID twice.
+ *
+ * Bucket counters are not idempotent by themselves. Every batch of a checkpointed run
+ * therefore carries a marker ({@link #batchMarker}) that is pushed onto the buckets it
+ * counts into (LOADER_BATCHES, the last {@link #MARKER_WINDOW} kept), and counter updates
+ * skip buckets that already hold the marker. A replayed batch then counts each crash once.
+ */
+class LoaderCheckpoint {
+
+    static final String MARKER_FIELD = "LOADER_BATCHES";
+
+    // Markers kept per bucket; Phase 1 never runs more batches than this ahead of its watermark
+    static final int MARKER_WINDOW = 64;
+
+    /**
+     * Most parallel Phase 2 workers a checkpointed run may use. Each worker can leave one
+     * batch counted but unsaved, and after a resume each replays it while the others move
+     * on to their next batch, so a bucket takes up to two markers per worker before the
+     * last replay reaches it.
+     */
+    static final int MAX_MARKED_WORKERS = MARKER_WINDOW / 2;
+
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    private final MongoCollection<Document> stateCollection;
+    private final String runId;
+    private final Document state;
+
+    private LoaderCheckpoint(MongoCollection<Document> stateCollection, String runId, Document state) {
+        this.stateCollection = stateCollection;
+        this.runId = runId;
+        this.state = state;
+    }
+
+    /**
+     * Loads the state of run {@code runId}, or starts a new one.
+     *
+     * @throws IllegalStateException if the run was started with a different batch size,
+     *                               which would move every batch boundary
+     */
+    static LoaderCheckpoint open(MongoDatabase db, String runId, int batchSize) {
+        MongoCollection<Document> stateCollection = db.getCollection("LOADER_STATE");
+        Document state = stateCollection.find(Filters.eq("_id", runId)).first();
+        if (state == null) {
+            state = new Document("_id", runId).append("BATCH_SIZE", batchSize).append("STARTED", new Date());
+            stateCollection.insertOne(state);
+            System.out.println("Starting checkpointed run '" + runId + "'");
+        } else {
+            Integer storedBatchSize = state.getInteger("BATCH_SIZE");
+            if (storedBatchSize != null && storedBatchSize != batchSize) {
+                throw new IllegalStateException("Run '" + runId + "' was started with batch size " + storedBatchSize +
+                        ", cannot resume it with batch size " + batchSize);
+            }
+            System.out.println("Resuming run '" + runId + "': " + state.toJson());
+        }
+        return new LoaderCheckpoint(stateCollection, runId, state);
+    }
+
+    String runId() {
+        return runId;
+    }
+
+    /**
+     * Identifies one batch of this run for the bucket counter guard. Replaying the batch
+     * after a resume must produce the same marker, so it is derived from the batch boundary.
+     */
+    String batchMarker(String phase, int boundary) {
+        return runId + ":" + phase + ":" + boundary;
+    }
+
+    /**
+     * Lowest bucket ID a resumed run may hand out.
+     */
+    int firstBucketId(int defaultFirstBucketId) {
+        Integer highWater = state.getInteger("BUCKET_ID_HIGH_WATER");
+        return highWater == null ? defaultFirstBucketId : Math.max(defaultFirstBucketId, highWater + 1);
+    }
+
+    boolean isComplete(String phase) {
+        return Boolean.TRUE.equals(phaseState(phase).getBoolean("COMPLETE"));
+    }
+
+    void markComplete(String phase) {
+        save(Updates.set(phase + ".COMPLETE", true));
+    }
+
+    // PHASE 1
+
+    /**
+     * First Phase 1 batch that is not known to be written.
+     */
+    int phase1NextBatch() {
+        Integer nextBatch = phaseState("PHASE1").getInteger("NEXT_BATCH");
+        return nextBatch == null ? 0 : nextBatch;
+    }
+
+    void savePhase1(int nextBatch, BucketIndex bucketIndex) {
+        save(withHighWater(Updates.max("PHASE1.NEXT_BATCH", nextBatch), bucketIndex));
+    }
+
+    // PHASE 2
+
+    /**
+     * Fails if Phase 2 of this run was started with another engine, whose progress and
+     * batch markers would not line up with this one.
+     */
+    void checkPhase2Engine(String engine) {
+        String storedEngine = phaseState("PHASE2").getString("ENGINE");
+        if (storedEngine != null && !storedEngine.equals(engine)) {
+            throw new IllegalStateException("Run '" + runId + "' was bucketed with the " + storedEngine +
+                    " engine, cannot resume it with the " + engine + " engine");
+        }
+        save(Updates.set("PHASE2.ENGINE", engine));
+    }
+
+    /**
+     * Fails if the aggregation engine started this run with another chunk size. Its batch
+     * markers are named after chunk boundaries, so a resumed run has to cut the same chunks.
+     */
+    void checkPhase2ChunkSize(int chunkSize) {
+        Integer storedChunkSize = phaseState("PHASE2").getInteger("CHUNK_SIZE");
+        if (storedChunkSize != null && storedChunkSize != chunkSize) {
+            throw new IllegalStateException("Run '" + runId + "' was bucketed in chunks of " + storedChunkSize +
+                    ", cannot resume it with chunks of " + chunkSize);
+        }
+        save(Updates.set("PHASE2.CHUNK_SIZE", chunkSize));
+    }
+
+    /**
+     * Last crash ID bucketed by the sequential or aggregation engine, or {@code defaultId} if none.
+     */
+    int phase2LastId(int defaultId) {
+        Integer lastId = phaseState("PHASE2").getInteger("LAST_ID");
+        return lastId == null ? defaultId : lastId;
+    }
+
+    void savePhase2(int lastId, BucketIndex bucketIndex) {
+        save(withHighWater(Updates.set("PHASE2.LAST_ID", lastId), bucketIndex));
+    }
+
+    /**
+     * The parallel engine's range layout (first boundary, size and last crash ID) if one was recorded.
+     */
+    Document phase2Ranges() {
+        return (Document) phaseState("PHASE2").get("RANGES");
+    }
+
+    void savePhase2Ranges(long firstAfterId, long rangeSize, long maxId) {
+        Document ranges = new Document("FIRST_AFTER_ID", firstAfterId).append("SIZE", rangeSize)
+                .append("MAX_ID", maxId).append("LAST_IDS", new Document());
+        state.put("PHASE2", new Document(phaseState("PHASE2")).append("RANGES", ranges));
+        save(Updates.set("PHASE2.RANGES", ranges));
+    }
+
+    /**
+     * Last crash ID bucketed in the range that starts after {@code afterId}, or {@code afterId} if none.
+     */
+    int phase2RangeLastId(int afterId) {
+        Document ranges = phase2Ranges();
+        Object lastIds = ranges == null ? null : ranges.get("LAST_IDS");
+        Object lastId = lastIds instanceof Map ? ((Map<?, ?>) lastIds).get(String.valueOf(afterId)) : null;
+        return lastId instanceof Integer ? (Integer) lastId : afterId;
+    }
+
+    // Ranges save into separate fields, so workers can report concurrently
+    void savePhase2Range(int afterId, int lastId, BucketIndex bucketIndex) {
+        save(withHighWater(Updates.max("PHASE2.RANGES.LAST_IDS." + afterId, lastId), bucketIndex));
+    }
+
+    // Runs without a bucket index (two-phase Phase 1) have no IDs to record
+    private static Bson withHighWater(Bson update, BucketIndex bucketIndex) {
+        return bucketIndex == null ? update
+                : Updates.combine(update, Updates.max("BUCKET_ID_HIGH_WATER", bucketIndex.maxBucketId()));
+    }
+
+    private Document phaseState(String phase) {
+        Document phaseState = (Document) state.get(phase);
+        return phaseState == null ? new Document() : phaseState;
+    }
+
+    private void save(Bson update) {
+        stateCollection.updateOne(Filters.eq("_id", runId),
+                Updates.combine(update, Updates.set("UPDATED", new Date())), UPSERT);
+    }
+
+    /**
+     * Restricts a bucket counter update to buckets that have not counted batch {@code marker} yet.
+     * No-op without a marker, i.e. outside checkpointed runs.
+     */
+    static Bson unlessCounted(Bson bucketFilter, String marker) {
+        return marker == null ? bucketFilter : Filters.and(bucketFilter, Filters.ne(MARKER_FIELD, marker));
+    }
+
+    /**
+     * Adds recording batch {@code marker} on the bucket to a counter update.
+     */
+    static Bson recordCounted(Bson update, String marker) {
+        if (marker == null) {
+            return update;
+        }
+        return Updates.combine(update, Updates.pushEach(MARKER_FIELD, Collections.singletonList(marker),
+                new PushOptions().slice(-MARKER_WINDOW)));
+    }
+}
@@ -0,0 +1,309 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import org.bson.Document;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide timers and counters for the loader's hot paths.
+ *
+ * Call sites keep the {@link Stat} they record into in a static field, so recording is a
+ * couple of LongAdder updates and no map lookup. Driver-level command timings and
+ * connection pool waits come from the listeners returned by {@link #commandListener()}
+ * and {@link #connectionPoolListener()}. Everything is readable over JMX
+ * ({@value #OBJECT_NAME}) and can be logged periodically with {@link #startReporting}.
+ */
+final class LoaderMetrics {
+
+    static final String OBJECT_NAME = "com.mongodb.adobe.crashreporter:type=LoaderMetrics";
+
+    /**
+     * Count, total and max of recorded values: nanoseconds for timers, plain numbers otherwise.
+     */
+    static final class Stat {
+        final String name;
+        final boolean timer;
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Stat(String name, boolean timer) {
+            this.name = name;
+            this.timer = timer;
+        }
+
+        void record(long value) {
+            count.increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the nanoseconds elapsed since {@code startNanos}, a System.nanoTime() value.
+         */
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        String summary() {
+            long n = count.sum();
+            if (n == 0) {
+                return name + " -";
+            }
+            if (timer) {
+                return name + " " + n + "x avg " + micros(total.sum() / n) + " max " + micros(max.get()) +
+                        " total " + (total.sum() / 1_000_000) + " ms";
+            }
+            return name + " " + n + "x avg " + (total.sum() / n) + " max " + max.get() + " total " + total.sum();
+        }
+
+        private static String micros(long nanos) {
+            return (nanos / 1000) + " us";
+        }
+    }
+
+    private static final Map<String, Stat> STATS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+    // Connection pool and driver command stats
+    private static final Stat POOL_CHECKOUT = timer("pool.checkoutWait");
+    private static final LongAdder POOL_CHECKOUT_FAILED = counter("pool.checkoutFailed");
+    private static final LongAdder POOL_CONNECTIONS_CREATED = counter("pool.connectionsCreated");
+    private static final LongAdder COMMANDS_FAILED = counter("driver.commandsFailed");
+
+    private static volatile ScheduledExecutorService reporter;
+
+    private LoaderMetrics() {
+    }
+
+    static Stat timer(String name) {
+        return STATS.computeIfAbsent(name, key -> new Stat(key, true));
+    }
+
+    static Stat distribution(String name) {
+        return STATS.computeIfAbsent(name, key -> new Stat(key, false));
+    }
+
+    static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Times every command the driver sends, per command name (insert, update, find, getMore, ...).
+     * The duration excludes client-side encoding, so comparing it with the matching loader timer
+     * (e.g. mongo.insertMany against driver.insert) shows where the time goes.
+     */
+    static CommandListener commandListener() {
+        return new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+            }
+
+            @Override
+            public void commandSucceeded(CommandSucceededEvent event) {
+                timer("driver." + event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+
+            @Override
+            public void commandFailed(CommandFailedEvent event) {
+                timer("driver." + event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+                COMMANDS_FAILED.increment();
+            }
+        };
+    }
+
+    /**
+     * Times how long operations wait to check a connection out of the pool.
+     */
+    static ConnectionPoolListener connectionPoolListener() {
+        return new ConnectionPoolListener() {
+            @Override
+            public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+                POOL_CHECKOUT.record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+            }
+
+            @Override
+            public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+                POOL_CHECKOUT_FAILED.increment();
+            }
+
+            @Override
+            public void connectionCreated(ConnectionCreatedEvent event) {
+                POOL_CONNECTIONS_CREATED.increment();
+            }
+        };
+    }
+
+    /**
+     * Registers the JMX bean and, if {@code intervalSeconds} is positive, logs a metrics line
+     * at that interval until the JVM exits. The line includes the bytes the server received
+     * from all of its clients, not only the loader, as server.allClients.bytesIn, sampled
+     * from serverStatus when the user may run it.
+     */
+    static void startReporting(MongoClient mongoClient, long intervalSeconds) {
+        registerMBean();
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loader-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Sampled on the reporter thread so the load never waits for serverStatus
+        LongAdder allClientsBytesIn = counter("server.allClients.bytesIn");
+        long[] lastBytesIn = {-1};
+        executor.execute(() -> lastBytesIn[0] = serverBytesIn(mongoClient));
+        executor.scheduleAtFixedRate(() -> {
+            long bytesIn = serverBytesIn(mongoClient);
+            if (bytesIn >= 0) {
+                // Only the growth since the last sample is added, so after reset() it counts from there like the
+                // other counters; a lower value means the server restarted and just becomes the new baseline
+                if (lastBytesIn[0] >= 0 && bytesIn >= lastBytesIn[0]) {
+                    allClientsBytesIn.add(bytesIn - lastBytesIn[0]);
+                }
+                lastBytesIn[0] = bytesIn;
+            }
+            System.out.println("Metrics: " + summary());
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        reporter = executor;
+    }
+
+    static void stopReporting() {
+        ScheduledExecutorService executor = reporter;
+        if (executor != null) {
+            executor.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    // -1 when serverStatus is not available, e.g. without the clusterMonitor role
+    private static long serverBytesIn(MongoClient mongoClient) {
+        try {
+            Document status = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1)
+                    .append("repl", 0).append("metrics", 0).append("locks", 0).append("wiredTiger", 0)
+                    .append("tcmalloc", 0).append("transactions", 0));
+            Object bytesIn = ((Document) status.get("network")).get("bytesIn");
+            return bytesIn instanceof Number ? ((Number) bytesIn).longValue() : -1;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * One line with every stat and counter that has been recorded, sorted by name.
+     */
+    static String summary() {
+        StringBuilder line = new StringBuilder();
+        for (Stat stat : new TreeMap<>(STATS).values()) {
+            if (stat.count.sum() > 0) {
+                line.append(line.length() == 0 ? "" : " | ").append(stat.summary());
+            }
+        }
+        for (Map.Entry<String, Long> counter : counters().entrySet()) {
+            if (counter.getValue() != 0) {
+                line.append(line.length() == 0 ? "" : " | ").append(counter.getKey()).append(' ').append(counter.getValue());
+            }
+        }
+        long hits = counter("bucketIndex.hits").sum();
+        long misses = counter("bucketIndex.misses").sum();
+        if (hits + misses > 0) {
+            line.append(" | bucketIndex.hitRate ").append(String.format("%.1f%%", 100.0 * hits / (hits + misses)));
+        }
+        return line.toString();
+    }
+
+    static Map<String, Long> counters() {
+        Map<String, Long> values = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> values.put(name, adder.sum()));
+        return values;
+    }
+
+    static Map<String, Stat> stats() {
+        return new TreeMap<>(STATS);
+    }
+
+    static void reset() {
+        for (Stat stat : STATS.values()) {
+            stat.count.reset();
+            stat.total.reset();
+            stat.max.reset();
+        }
+        for (LongAdder adder : COUNTERS.values()) {
+            adder.reset();
+        }
+    }
+
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by an earlier run in this JVM
+        } catch (JMException e) {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    private static final class MXBean implements LoaderMetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters();
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            Map<String, Long> values = new TreeMap<>();
+            stats().forEach((name, stat) -> values.put(name, stat.count.sum()));
+            return values;
+        }
+
+        @Override
+        public Map<String, Double> getAverages() {
+            Map<String, Double> values = new TreeMap<>();
+            stats().forEach((name, stat) -> {
+                long n = stat.count.sum();
+                values.put(name, n == 0 ? 0.0 : (stat.timer ? stat.total.sum() / 1000.0 : stat.total.sum()) / n);
+            });
+            return values;
+        }
+
+        @Override
+        public Map<String, Double> getMaximums() {
+            Map<String, Double> values = new TreeMap<>();
+            stats().forEach((name, stat) -> values.put(name, stat.timer ? stat.max.get() / 1000.0 : stat.max.get()));
+            return values;
+        }
+
+        @Override
+        public String getSummary() {
+            return summary();
+        }
+
+        @Override
+        public void reset() {
+            LoaderMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link LoaderMetrics}. Timer values are in microseconds.
+ */
+public interface LoaderMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getAverages();
+
+    Map<String, Double> getMaximums();
+
+    String getSummary();
+
+    void reset();
+}
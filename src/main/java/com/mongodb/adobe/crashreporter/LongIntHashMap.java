@@ -0,0 +1,116 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values.
+ *
+ * Keys and values live in two parallel arrays probed linearly, so a lookup allocates
+ * nothing and an entry costs 12 bytes of table space instead of a HashMap node plus a
+ * boxed key and value. Key 0 is stored out of line because 0 marks an empty slot.
+ */
+class LongIntHashMap {
+
+    static final int NO_VALUE = -1;
+
+    private static final long EMPTY = 0L;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int resizeThreshold;
+
+    private boolean hasZeroKey;
+    private int zeroKeyValue;
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value mapped to {@code key}, or {@link #NO_VALUE} if there is none.
+     */
+    int get(long key) {
+        if (key == EMPTY) {
+            return hasZeroKey ? zeroKeyValue : NO_VALUE;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (true) {
+            long slotKey = keys[slot];
+            if (slotKey == key) {
+                return values[slot];
+            }
+            if (slotKey == EMPTY) {
+                return NO_VALUE;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, replacing any previous mapping.
+     */
+    void put(long key, int value) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroKeyValue = value;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held by the key and value tables.
+     */
+    long tableBytes() {
+        return (long) keys.length * Long.BYTES + (long) values.length * Integer.BYTES;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        size = hasZeroKey ? 1 : 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    // Packed keys differ mostly in their low bits, so spread them before masking
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
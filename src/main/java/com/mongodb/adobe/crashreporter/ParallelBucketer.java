@@ -0,0 +1,219 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phase 2 bucketing spread over a pool of workers.
+ *
+ * CRD_CRASH_PKG is split into ID ranges, a few per thread so a slow range does not hold
+ * up the whole run, and each worker keyset-scans its ranges in batches. All workers
+ * share one {@link BucketIndex}, which hands out bucket IDs atomically, so a bucket key
+ * seen by two workers at once still maps to a single bucket. Bucket counters are written
+ * as ID keyed upserts through {@link IngestBucketer}, which tolerates two workers creating
+ * the same bucket in the same instant, and the crash assignments go through a per-worker
+ * {@link BucketWriteStage}.
+ *
+ * With a {@link LoaderCheckpoint} the range layout and each range's progress are saved
+ * after every batch, and a resumed run continues every range after its last saved crash.
+ * Checkpointed runs are limited to {@link LoaderCheckpoint#MAX_MARKED_WORKERS} workers, so
+ * a replayed batch still finds its marker on the buckets it counted.
+ */
+class ParallelBucketer {
+
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final MongoCollection<Document> crashPkgCollection;
+    private final MongoCollection<Document> bucketCollection;
+    private final int threads;
+    private final int batchSize;
+    private final int firstBucketId;
+    private final IngestBucketer.BucketDocumentFactory bucketDocumentFactory;
+    private final LoaderCheckpoint checkpoint;
+    private final CrashRollupStage rollups;
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicInteger batchCount = new AtomicInteger();
+
+    ParallelBucketer(MongoDatabase db, int threads, int batchSize, int firstBucketId,
+                     IngestBucketer.BucketDocumentFactory bucketDocumentFactory, LoaderCheckpoint checkpoint,
+                     CrashRollupStage rollups) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Phase 2 needs at least one thread");
+        }
+        this.crashPkgCollection = db.getCollection("CRD_CRASH_PKG");
+        this.bucketCollection = db.getCollection("CRD_BUCKET_ADOBE");
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.firstBucketId = firstBucketId;
+        this.bucketDocumentFactory = bucketDocumentFactory;
+        this.checkpoint = checkpoint;
+        this.rollups = rollups;
+    }
+
+    /**
+     * Buckets every crash package and blocks until all ranges are done.
+     */
+    void run() {
+        if (checkpoint != null) {
+            if (threads > LoaderCheckpoint.MAX_MARKED_WORKERS) {
+                throw new IllegalArgumentException("A checkpointed run can bucket with at most " +
+                        LoaderCheckpoint.MAX_MARKED_WORKERS + " parallel workers, not " + threads +
+                        "; lower crash.phase2Threads");
+            }
+            checkpoint.checkPhase2Engine("parallel");
+            if (checkpoint.isComplete("PHASE2")) {
+                System.out.println("Run '" + checkpoint.runId() + "' is already bucketed.");
+                return;
+            }
+        }
+
+        crashPkgCollection.createIndex(Indexes.ascending("ID"));
+        BucketIndex bucketIndex = BucketIndex.load(bucketCollection,
+                checkpoint == null ? firstBucketId : checkpoint.firstBucketId(firstBucketId));
+        int bucketsBefore = bucketIndex.size();
+        IngestBucketer bucketer = new IngestBucketer(bucketIndex, bucketCollection, bucketDocumentFactory, rollups);
+
+        Document first = crashPkgCollection.find().projection(Projections.include("ID"))
+                .sort(Sorts.ascending("ID")).first();
+        Document last = crashPkgCollection.find().projection(Projections.include("ID"))
+                .sort(Sorts.descending("ID")).first();
+        if (first == null || last == null) {
+            System.out.println("No crash documents to bucket.");
+            return;
+        }
+        long minId = first.getInteger("ID");
+        long maxId = last.getInteger("ID");
+
+        int rangeCount = threads * RANGES_PER_THREAD;
+        long firstAfterId = minId - 1;
+        long rangeSize = Math.max(1, (maxId - minId + rangeCount) / rangeCount);
+        if (checkpoint != null) {
+            // A resumed run keeps the original layout, its progress is saved per range
+            Document ranges = checkpoint.phase2Ranges();
+            if (ranges != null) {
+                firstAfterId = ((Number) ranges.get("FIRST_AFTER_ID")).longValue();
+                rangeSize = ((Number) ranges.get("SIZE")).longValue();
+                maxId = ((Number) ranges.get("MAX_ID")).longValue();
+            } else {
+                checkpoint.savePhase2Ranges(firstAfterId, rangeSize, maxId);
+            }
+        }
+        long totalDocCount = crashPkgCollection.countDocuments();
+        System.out.println("Total crash documents to process: " + totalDocCount +
+                " (" + threads + " workers, ID ranges of " + rangeSize + ")");
+
+        long start = System.nanoTime();
+        // One platform thread per worker: a range spends most of its time blocked on find and bulk
+        // write round trips, which would tie up a fork-join pool's few threads while work stealing
+        // has nothing to balance. The build targets Java 8, so virtual threads are not an option.
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(rangeCount);
+            // Each range is (afterId, toId], so the first one starts just below the smallest ID
+            for (long afterId = firstAfterId; afterId < maxId; afterId += rangeSize) {
+                int from = (int) afterId;
+                int to = (int) Math.min(maxId, afterId + rangeSize);
+                futures.add(workers.submit(() -> bucketRange(bucketer, from, to, totalDocCount)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while bucketing crash documents", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel bucketing failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (checkpoint != null) {
+            checkpoint.markComplete("PHASE2");
+        }
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(bucketIndex.heapStats());
+        System.out.println("Bucketing complete. Processed " + processedCount.get() +
+                " crash documents in " + elapsedMillis + " ms" +
+                " (" + (processedCount.get() * 1000 / elapsedMillis) + " docs/sec)" +
+                " and created " + (bucketIndex.size() - bucketsBefore) + " new buckets" +
+                " (" + bucketIndex.size() + " unique buckets in total).");
+    }
+
+    /**
+     * Buckets the crashes with afterId &lt; ID &lt;= toId, one keyset page at a time.
+     */
+    private void bucketRange(IngestBucketer bucketer, int afterId, int toId, long totalDocCount) {
+        BucketWriteStage writeStage = new BucketWriteStage(crashPkgCollection, bucketCollection);
+        int lastSeenId = checkpoint == null ? afterId : checkpoint.phase2RangeLastId(afterId);
+        boolean hasMoreDocs = true;
+
+        while (hasMoreDocs) {
+            long findStart = System.nanoTime();
+            List<Document> crashDocsBatch = crashPkgCollection
+                    .find(Filters.and(Filters.gt("ID", lastSeenId), Filters.lte("ID", toId)))
+                    .projection(CrashReporterDataLoaderV2.BUCKETING_PROJECTION)
+                    .sort(Sorts.ascending("ID"))
+                    .limit(batchSize)
+                    .batchSize(batchSize)
+                    .into(new ArrayList<>(batchSize));
+            CrashReporterDataLoaderV2.FIND_TIMER.recordSince(findStart);
+            if (crashDocsBatch.isEmpty()) {
+                break;
+            }
+
+            IngestBucketer.Batch<Document> batch = new IngestBucketer.Batch<>(
+                    crashDocsBatch.get(0).getInteger("ID"), crashDocsBatch.size());
+            if (checkpoint != null) {
+                batch.marker = checkpoint.batchMarker("bucket", lastSeenId);
+            }
+            int[] bucketIds = new int[crashDocsBatch.size()];
+            for (int i = 0; i < crashDocsBatch.size(); i++) {
+                Document crashDoc = crashDocsBatch.get(i);
+                Date crashDate = crashDoc.getDate("CRASHDATE");
+                bucketIds[i] = bucketer.assign(batch, (Document) crashDoc.get("APP"),
+                        crashDoc.getString("MODULE"), crashDoc.getInteger("OFFSET"),
+                        crashDate == null ? new Date() : crashDate);
+                lastSeenId = crashDoc.getInteger("ID");
+            }
+
+            // Buckets first, so a crash never points at a bucket that does not exist yet, and
+            // at the ID the bucket write settled on
+            Map<Integer, Integer> remapped = bucketer.writeBuckets(batch);
+            for (int i = 0; i < crashDocsBatch.size(); i++) {
+                writeStage.assign(crashDocsBatch.get(i).getInteger("ID"),
+                        remapped.getOrDefault(bucketIds[i], bucketIds[i]));
+            }
+            writeStage.flush();
+            if (checkpoint != null) {
+                checkpoint.savePhase2Range(afterId, lastSeenId, bucketer.bucketIndex());
+            }
+
+            hasMoreDocs = crashDocsBatch.size() == batchSize;
+            long processed = processedCount.addAndGet(crashDocsBatch.size());
+            System.out.println("Processed batch #" + batchCount.incrementAndGet() +
+                    " (IDs up to " + lastSeenId + " of range ending " + toId + ")" +
+                    " - Total: " + processed + "/" + totalDocCount);
+        }
+
+        writeStage.printSummary();
+    }
+}
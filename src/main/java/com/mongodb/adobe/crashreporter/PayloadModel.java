@@ -0,0 +1,124 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Payload shape of generated crash packages: a size model per CLOB field plus counters
+ * of the payload bytes actually generated and of the bytes they are stored as.
+ *
+ * Each field reads {@code -Dcrash.clobSize.<FIELD>}, falling back to
+ * {@code -Dcrash.clobSize} and then to a fixed 50 KB, see {@link PayloadSizeModel}
+ * for the spec format.
+ */
+class PayloadModel {
+
+    private static final String DEFAULT_SPEC = "fixed:" + (50 * 1024);
+
+    private final Map<ClobField, PayloadSizeModel> sizeModels = new EnumMap<>(ClobField.class);
+    private final Map<ClobField, LongAdder> generatedBytes = new EnumMap<>(ClobField.class);
+    private final Map<ClobField, LongAdder> generatedValues = new EnumMap<>(ClobField.class);
+    private final Map<ClobField, LongAdder> storedBytes = new EnumMap<>(ClobField.class);
+
+    PayloadModel(Map<ClobField, PayloadSizeModel> sizeModels) {
+        for (ClobField field : ClobField.values()) {
+            this.sizeModels.put(field, sizeModels.get(field));
+            generatedBytes.put(field, new LongAdder());
+            generatedValues.put(field, new LongAdder());
+            storedBytes.put(field, new LongAdder());
+        }
+    }
+
+    static PayloadModel fromSystemProperties() {
+        String defaultSpec = System.getProperty("crash.clobSize", DEFAULT_SPEC);
+        Map<ClobField, PayloadSizeModel> sizeModels = new EnumMap<>(ClobField.class);
+        for (ClobField field : ClobField.values()) {
+            sizeModels.put(field, PayloadSizeModel.parse(System.getProperty("crash.clobSize." + field.name(), defaultSpec)));
+        }
+        return new PayloadModel(sizeModels);
+    }
+
+    /**
+     * Draws the size class of the next {@code field} payload and counts its bytes.
+     */
+    int nextSizeClass(ClobField field, Random random) {
+        int sizeClass = sizeModels.get(field).sampleSizeClass(random);
+        generatedBytes.get(field).add(PayloadSizeModel.classBytes(sizeClass));
+        generatedValues.get(field).increment();
+        return sizeClass;
+    }
+
+    /**
+     * Counts the bytes a generated {@code field} payload is stored as, once encoded.
+     */
+    void countStored(ClobField field, int bytes) {
+        storedBytes.get(field).add(bytes);
+    }
+
+    /**
+     * UTF-8 payload bytes generated so far over all CLOB fields.
+     */
+    long generatedBytes() {
+        long bytes = 0;
+        for (LongAdder fieldBytes : generatedBytes.values()) {
+            bytes += fieldBytes.sum();
+        }
+        return bytes;
+    }
+
+    /**
+     * Prints the generated payload bytes per field and what the server stores per collection.
+     */
+    void printSummary(MongoDatabase db, String... collectionNames) {
+        System.out.println("Payload summary:");
+        long totalBytes = 0;
+        long totalStored = 0;
+        for (ClobField field : ClobField.values()) {
+            long bytes = generatedBytes.get(field).sum();
+            long values = generatedValues.get(field).sum();
+            long stored = storedBytes.get(field).sum();
+            totalBytes += bytes;
+            totalStored += stored;
+            System.out.println("  " + field + " [" + sizeModels.get(field) + "]: " + values + " values, " +
+                    megabytes(bytes) + " MB (avg " + (values == 0 ? 0 : bytes / values) + " bytes), stored as " +
+                    megabytes(stored) + " MB" + ratio(bytes, stored));
+        }
+        System.out.println("  All CLOB fields: " + megabytes(totalBytes) + " MB of UTF-8 payload generated, stored as " +
+                megabytes(totalStored) + " MB" + ratio(totalBytes, totalStored));
+
+        for (String collectionName : collectionNames) {
+            Document stats = db.getCollection(collectionName)
+                    .aggregate(Arrays.asList(new Document("$collStats", new Document("storageStats", new Document()))))
+                    .first();
+            if (stats == null) {
+                continue;
+            }
+            Document storageStats = (Document) stats.get("storageStats");
+            long count = number(storageStats, "count");
+            long size = number(storageStats, "size");
+            System.out.println("  " + collectionName + ": " + count + " documents, " +
+                    megabytes(size) + " MB of BSON (avg " + (count == 0 ? 0 : size / count) + " bytes/doc), " +
+                    megabytes(number(storageStats, "storageSize")) + " MB on disk");
+        }
+    }
+
+    private static long number(Document doc, String key) {
+        Object value = doc.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static String ratio(long bytes, long stored) {
+        return stored == 0 ? "" : String.format(" (%.1f:1)", (double) bytes / stored);
+    }
+
+    private static long megabytes(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+}
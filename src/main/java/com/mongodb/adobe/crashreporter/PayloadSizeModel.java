@@ -0,0 +1,180 @@
+package com.mongodb.adobe.crashreporter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Size distribution for one generated CLOB field, in UTF-8 bytes.
+ *
+ * Models are parsed from a spec string:
+ * <ul>
+ *   <li>{@code fixed:<bytes>}</li>
+ *   <li>{@code uniform:<minBytes>:<maxBytes>}</li>
+ *   <li>{@code lognormal:<medianBytes>:<sigma>}</li>
+ *   <li>{@code histogram:<file>} - one {@code <bytes> <weight>} pair per line, '#' starts a comment</li>
+ * </ul>
+ *
+ * Sampled sizes are rounded down to a size class (64 byte steps below 1 KB, sixteen steps
+ * per power of two above) so that generated payloads can still be cached and shared.
+ */
+abstract class PayloadSizeModel {
+
+    // Five CLOB fields have to fit in one 16 MB BSON document
+    static final int MAX_FIELD_BYTES = 3 * 1024 * 1024;
+
+    private static final int SMALL_CLASS_BYTES = 64;
+    private static final int SMALL_CLASSES = 1024 / SMALL_CLASS_BYTES;
+    private static final int STEPS_PER_DOUBLING = 16;
+
+    static final int SIZE_CLASSES = sizeClass(MAX_FIELD_BYTES) + 1;
+
+    private final String spec;
+
+    private PayloadSizeModel(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Draws a payload size in bytes, before size class rounding.
+     */
+    abstract int sampleBytes(Random random);
+
+    /**
+     * Draws a payload size and returns its size class.
+     */
+    int sampleSizeClass(Random random) {
+        int bytes = Math.max(0, Math.min(MAX_FIELD_BYTES, sampleBytes(random)));
+        return sizeClass(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    static int sizeClass(int bytes) {
+        if (bytes < 1024) {
+            return bytes / SMALL_CLASS_BYTES;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(bytes);
+        int step = 1 << (exponent - 4);
+        return SMALL_CLASSES + (exponent - 10) * STEPS_PER_DOUBLING + (bytes - (1 << exponent)) / step;
+    }
+
+    static int classBytes(int sizeClass) {
+        if (sizeClass < SMALL_CLASSES) {
+            return sizeClass * SMALL_CLASS_BYTES;
+        }
+        int exponent = 10 + (sizeClass - SMALL_CLASSES) / STEPS_PER_DOUBLING;
+        int steps = (sizeClass - SMALL_CLASSES) % STEPS_PER_DOUBLING;
+        return (1 << exponent) + steps * (1 << (exponent - 4));
+    }
+
+    static PayloadSizeModel parse(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        String args = parts.length > 1 ? parts[1] : "";
+        try {
+            switch (parts[0].toLowerCase()) {
+                case "fixed":
+                    return fixed(spec, Integer.parseInt(args.trim()));
+                case "uniform": {
+                    String[] range = args.split(":");
+                    return uniform(spec, Integer.parseInt(range[0].trim()), Integer.parseInt(range[1].trim()));
+                }
+                case "lognormal": {
+                    String[] params = args.split(":");
+                    return logNormal(spec, Double.parseDouble(params[0].trim()), Double.parseDouble(params[1].trim()));
+                }
+                case "histogram":
+                    return histogram(spec, args.trim());
+                default:
+                    throw new IllegalArgumentException("Unknown payload size model '" + parts[0] + "' in: " + spec);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed payload size model: " + spec, e);
+        }
+    }
+
+    private static PayloadSizeModel fixed(String spec, int bytes) {
+        return new PayloadSizeModel(spec) {
+            @Override
+            int sampleBytes(Random random) {
+                return bytes;
+            }
+        };
+    }
+
+    private static PayloadSizeModel uniform(String spec, int minBytes, int maxBytes) {
+        if (maxBytes < minBytes) {
+            throw new IllegalArgumentException("Uniform payload size model needs min <= max: " + spec);
+        }
+        return new PayloadSizeModel(spec) {
+            @Override
+            int sampleBytes(Random random) {
+                return minBytes + random.nextInt(maxBytes - minBytes + 1);
+            }
+        };
+    }
+
+    private static PayloadSizeModel logNormal(String spec, double medianBytes, double sigma) {
+        double mu = Math.log(medianBytes);
+        return new PayloadSizeModel(spec) {
+            @Override
+            int sampleBytes(Random random) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.exp(mu + sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    private static PayloadSizeModel histogram(String spec, String file) {
+        List<int[]> rows = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                String row = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (row.isEmpty()) {
+                    continue;
+                }
+                String[] columns = row.split("[,\\s]+");
+                rows.add(new int[] {Integer.parseInt(columns[0]), Integer.parseInt(columns[1])});
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read payload size histogram " + file, e);
+        }
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("Payload size histogram " + file + " has no rows");
+        }
+
+        int[] sizes = new int[rows.size()];
+        long[] cumulativeWeights = new long[rows.size()];
+        long totalWeight = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            sizes[i] = rows.get(i)[0];
+            totalWeight += rows.get(i)[1];
+            cumulativeWeights[i] = totalWeight;
+        }
+        long weightSum = totalWeight;
+        return new PayloadSizeModel(spec) {
+            @Override
+            int sampleBytes(Random random) {
+                long target = (long) (random.nextDouble() * weightSum);
+                int low = 0;
+                int high = cumulativeWeights.length - 1;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (cumulativeWeights[mid] > target) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                return sizes[low];
+            }
+        };
+    }
+}
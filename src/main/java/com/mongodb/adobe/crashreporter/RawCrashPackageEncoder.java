@@ -0,0 +1,108 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encodes crash packages straight to BSON, bypassing {@link Document}.
+ *
+ * Fields are written in the same order and with the same values as the Document based
+ * generator into one reusable output buffer, and the CLOB fields are copied in as
+ * pre-encoded elements from the {@link ClobCache}. Each result is a compact
+ * {@link RawBsonDocument} that the driver sends without walking a map or re-encoding
+ * strings. Not thread safe: use one encoder per generator thread.
+ */
+class RawCrashPackageEncoder {
+
+    private static final LoaderMetrics.Stat ENCODE_TIMER = LoaderMetrics.timer("encode.rawCrashPackage");
+    private static final LongAdder ENCODED_BYTES = LoaderMetrics.counter("bytes.rawCrashPackages");
+
+    private final ClobCache clobCache;
+    private final PayloadModel payloadModel;
+    private final ClobEncoding clobEncoding;
+    private final BasicOutputBuffer buffer = new BasicOutputBuffer(512 * 1024);
+
+    RawCrashPackageEncoder(ClobCache clobCache, PayloadModel payloadModel, ClobEncoding clobEncoding) {
+        this.clobCache = clobCache;
+        this.payloadModel = payloadModel;
+        this.clobEncoding = clobEncoding;
+    }
+
+    /**
+     * Encodes crash package {@code i}; BUCKET_ID_ADOBE is only written when {@code bucketId} is set.
+     */
+    RawBsonDocument encode(int i, Document appSubDoc, String module, int offset, Integer bucketId, Random random) {
+        long start = System.nanoTime();
+        String appName = appSubDoc.getString("NAME");
+        String compactAppName = appName.replace(" ", "");
+        long now = System.currentTimeMillis();
+
+        buffer.truncateToPosition(0);
+        BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+        writer.writeStartDocument();
+        writer.writeInt32("ID", i);
+        writer.writeInt32("UNIQUE_CRASH_ID", 30000 + i);
+        writer.writeInt32("USER_ID", 4000 + i);
+        writer.writeInt32("PLATFORM_ID", 2);
+        writer.writeString("MODULE", module);
+        writer.writeInt32("OFFSET", offset);
+        writeClob(ClobField.EXCEPTION, appName, random);
+        writeClob(ClobField.REPROSTEPS, appName, random);
+        writeClob(ClobField.NOTES, appName, random);
+        writer.writeDateTime("EMAILDATE", now);
+        writer.writeDateTime("CRASHDATE", now);
+        writer.writeDateTime("CREATED", now);
+        writeClob(ClobField.PACKAGE, appName, random);
+        writer.writeInt32("CHECKSUM", 987654321 + i);
+        writer.writeString("USER_EMAIL", "user" + i + "@example.com");
+        writer.writeString("CRASH_GUID", "guid-crash-" + i);
+        writer.writeString("USER_GUID", "guid-user-" + i);
+        writer.writeInt32("BUCKET_ID_TOP", 10 + i);
+        if (bucketId != null) {
+            writer.writeInt32("BUCKET_ID_ADOBE", bucketId);
+        }
+        writer.writeInt32("MS_EVENT_ID", 500 + i);
+        writer.writeString("MS_EVENT_TYPE", "crash");
+        writer.writeInt32("MS_CAB_ID", 600 + i);
+        writer.writeString("PATH", "C:/Users/user/Documents/crashes/crash" + i + ".dmp");
+        writer.writeStartDocument("APP");
+        writer.writeInt32("APP_ID", appSubDoc.getInteger("APP_ID"));
+        writer.writeString("NAME", appName);
+        writer.writeString("VERSION", appSubDoc.getString("VERSION"));
+        writer.writeString("BUILD", appSubDoc.getString("BUILD"));
+        writer.writeEndDocument();
+        writer.writeString("DMP_PATH", "/dumps/" + compactAppName + "_" + i + ".dmp");
+        writer.writeString("MS_EVENT_NAME", "CrashEvent-" + compactAppName);
+        writer.writeNull("OLD_CRASH_ID");
+        writer.writeNull("OLD_BUCKET_ID");
+        writer.writeString("EXPLOITABLE", "NO");
+        writer.writeInt32("ISSUE_ID", 999999 + i);
+        writer.writeString("ISSUEMAKER_HOST", "crash-reporter.adobe.internal");
+        writer.writeDateTime("ISSUEMAKER_TIMESTAMP", now);
+        writer.writeString("ISSUEMAKER_STATUS", "Open");
+        writeClob(ClobField.CLEAN_COMMENT, appName, random);
+        writer.writeDouble("COMMENT_SCORE", 8.9);
+        writer.writeString("CR_DUNAMIS_SESSIONID", "sess-" + i);
+        writer.writeString("SPLUNK_URL", "https://splunk.adobe.com/crashes/" + i);
+        writer.writeString("APPLOG_PATH", "/logs/adobe/" + i + "/app.log");
+        writer.writeEndDocument();
+        writer.close();
+
+        RawBsonDocument crashDoc = new RawBsonDocument(buffer.toByteArray());
+        ENCODED_BYTES.add(buffer.getPosition());
+        ENCODE_TIMER.recordSince(start);
+        return crashDoc;
+    }
+
+    // The writer sizes documents from buffer positions, so whole elements can be copied in between its calls
+    private void writeClob(ClobField field, String appName, Random random) {
+        int sizeClass = payloadModel.nextSizeClass(field, random);
+        buffer.writeBytes(clobCache.element(field, appName, sizeClass, clobEncoding));
+        payloadModel.countStored(field, clobCache.storedBytes(field, appName, sizeClass, clobEncoding));
+    }
+}
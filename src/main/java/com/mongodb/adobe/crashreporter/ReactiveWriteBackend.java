@@ -0,0 +1,124 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous writes on the Reactive Streams driver, for links where round trips rather
+ * than the server limit throughput.
+ *
+ * A write is started by the calling thread and completes on a driver thread, so one caller
+ * can keep up to {@code maxInFlight} writes outstanding instead of one per blocked thread.
+ * Once that many are in flight the next call blocks until one completes, which passes the
+ * back-pressure on to whatever produces the batches.
+ */
+class ReactiveWriteBackend implements AutoCloseable {
+
+    private static final LoaderMetrics.Stat IN_FLIGHT_WAIT = LoaderMetrics.timer("async.inFlightWait");
+    private static final LoaderMetrics.Stat INSERT_TIMER = LoaderMetrics.timer("mongo.async.insertMany");
+    private static final LoaderMetrics.Stat BULK_WRITE_TIMER = LoaderMetrics.timer("mongo.async.bulkWrite");
+
+    private final MongoClient mongoClient;
+    private final String database;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    ReactiveWriteBackend(MongoClientSettings settings, String database, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one write must be allowed in flight");
+        }
+        this.mongoClient = MongoClients.create(settings);
+        this.database = database;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    int maxInFlight() {
+        return maxInFlight;
+    }
+
+    <T> MongoCollection<T> collection(String name, Class<T> documentClass) {
+        return mongoClient.getDatabase(database).getCollection(name, documentClass);
+    }
+
+    <T> CompletableFuture<Void> insertMany(MongoCollection<T> collection, List<? extends T> documents,
+                                           InsertManyOptions options) {
+        return submit(null, () -> collection.insertMany(documents, options), INSERT_TIMER);
+    }
+
+    /**
+     * Starts the bulk write once {@code after} has completed, or right away if it is null.
+     * The in-flight slot is taken now, so chained writes are bounded like any other.
+     */
+    <T> CompletableFuture<Void> bulkWrite(MongoCollection<T> collection, List<? extends WriteModel<? extends T>> requests,
+                                          BulkWriteOptions options, CompletableFuture<?> after) {
+        return submit(after, () -> collection.bulkWrite(requests, options), BULK_WRITE_TIMER);
+    }
+
+    private CompletableFuture<Void> submit(CompletableFuture<?> after, Supplier<Publisher<?>> write,
+                                           LoaderMetrics.Stat timer) {
+        long waitStart = System.nanoTime();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an in-flight write", e);
+        }
+        IN_FLIGHT_WAIT.recordSince(waitStart);
+
+        CompletableFuture<?> ready = after == null ? CompletableFuture.completedFuture(null) : after;
+        CompletableFuture<Void> written = ready.thenCompose(ignored -> {
+            long start = System.nanoTime();
+            CompletableFuture<Void> completed = completion(write.get());
+            completed.thenRun(() -> timer.recordSince(start));
+            return completed;
+        });
+        written.whenComplete((result, error) -> inFlight.release());
+        return written;
+    }
+
+    // Completes when the publisher does; the single result of a write is not needed
+    private static CompletableFuture<Void> completion(Publisher<?> publisher) {
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<Object>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Object result) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                completed.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        return completed;
+    }
+
+    @Override
+    public void close() {
+        mongoClient.close();
+    }
+}
@@ -0,0 +1,193 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Top-N buckets of an app over a range of hours, answered from the hourly rollups of
+ * {@link CrashRollupStage} and cached in process.
+ *
+ * Ranges are widened to whole hours, the rollup granularity, so dashboards polling
+ * "the last hour" share one cache entry until the hour turns. Entries expire
+ * {@code ttlMillis} after they were loaded, bounding how stale a ranking can get, and the
+ * least recently used entry is dropped once there are {@code maxEntries}. Safe for
+ * concurrent use; two threads missing on the same key may both run the query.
+ */
+class TopBucketQuery {
+
+    private static final LoaderMetrics.Stat QUERY_TIMER = LoaderMetrics.timer("mongo.aggregate.topBuckets");
+    private static final LongAdder CACHE_HITS = LoaderMetrics.counter("topBuckets.cacheHits");
+    private static final LongAdder CACHE_MISSES = LoaderMetrics.counter("topBuckets.cacheMisses");
+
+    /**
+     * Crashes of one bucket within the queried range.
+     */
+    static final class BucketCount {
+        final int bucketId;
+        final long crashCount;
+        final Date lastCrashDate;
+
+        BucketCount(int bucketId, long crashCount, Date lastCrashDate) {
+            this.bucketId = bucketId;
+            this.crashCount = crashCount;
+            this.lastCrashDate = lastCrashDate;
+        }
+
+        @Override
+        public String toString() {
+            return "bucket " + bucketId + ": " + crashCount + " crashes, last at " + lastCrashDate.toInstant();
+        }
+    }
+
+    private static final class Key {
+        final String product;
+        final String version;
+        final long fromHour;
+        final long toHour;
+        final int limit;
+
+        Key(String product, String version, long fromHour, long toHour, int limit) {
+            this.product = product;
+            this.version = version;
+            this.fromHour = fromHour;
+            this.toHour = toHour;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fromHour == other.fromHour && toHour == other.toHour && limit == other.limit
+                    && product.equals(other.product) && Objects.equals(version, other.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(product, version, fromHour, toHour, limit);
+        }
+    }
+
+    private static final class Entry {
+        final List<BucketCount> buckets;
+        final long loadedNanos;
+
+        Entry(List<BucketCount> buckets, long loadedNanos) {
+            this.buckets = buckets;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    private final MongoCollection<Document> rollupCollection;
+    private final long ttlNanos;
+    // Access ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, Entry> cache;
+
+    TopBucketQuery(MongoDatabase db, long ttlMillis, int maxEntries) {
+        this.rollupCollection = db.getCollection(CrashRollupStage.COLLECTION);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Top {@code limit} buckets of {@code product} over the last {@code hours} hours, counting
+     * the current hour as the last of them.
+     *
+     * @param version app version, or null for all versions
+     */
+    List<BucketCount> topBucketsLastHours(String product, String version, int hours, int limit) {
+        long toHour = CrashRollupStage.hourOf(System.currentTimeMillis()) + CrashRollupStage.HOUR_MILLIS;
+        return topBuckets(product, version, toHour - hours * CrashRollupStage.HOUR_MILLIS, toHour, limit);
+    }
+
+    /**
+     * Top {@code limit} buckets of {@code product} by crashes from {@code from} up to {@code to},
+     * widened to the hours they fall in, most crashes first.
+     *
+     * @param version app version, or null for all versions
+     */
+    List<BucketCount> topBuckets(String product, String version, Date from, Date to, int limit) {
+        long toHour = CrashRollupStage.hourOf(to.getTime());
+        if (toHour < to.getTime()) {
+            toHour += CrashRollupStage.HOUR_MILLIS;
+        }
+        return topBuckets(product, version, CrashRollupStage.hourOf(from.getTime()), toHour, limit);
+    }
+
+    private List<BucketCount> topBuckets(String product, String version, long fromHour, long toHour, int limit) {
+        Key key = new Key(product, version, fromHour, toHour, limit);
+        long now = System.nanoTime();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && now - entry.loadedNanos < ttlNanos) {
+                CACHE_HITS.increment();
+                return entry.buckets;
+            }
+        }
+        CACHE_MISSES.increment();
+        List<BucketCount> buckets = query(key);
+        synchronized (cache) {
+            cache.put(key, new Entry(buckets, now));
+        }
+        return buckets;
+    }
+
+    private List<BucketCount> query(Key key) {
+        List<Bson> filters = new ArrayList<>(3);
+        filters.add(Filters.eq("APP.NAME", key.product));
+        if (key.version != null) {
+            filters.add(Filters.eq("APP.VERSION", key.version));
+        }
+        filters.add(Filters.gte("HOUR", new Date(key.fromHour)));
+        filters.add(Filters.lt("HOUR", new Date(key.toHour)));
+
+        long start = System.nanoTime();
+        List<BucketCount> buckets = new ArrayList<>(key.limit);
+        for (Document bucket : rollupCollection.aggregate(Arrays.asList(
+                Aggregates.match(Filters.and(filters)),
+                Aggregates.group("$BUCKET_ID",
+                        Accumulators.sum("CRASH_COUNT", "$CRASH_COUNT"),
+                        Accumulators.max("LAST_CRASH_DATE", "$LAST_CRASH_DATE")),
+                Aggregates.sort(Sorts.orderBy(Sorts.descending("CRASH_COUNT"), Sorts.ascending("_id"))),
+                Aggregates.limit(key.limit)))) {
+            buckets.add(new BucketCount(bucket.getInteger("_id"),
+                    ((Number) bucket.get("CRASH_COUNT")).longValue(), bucket.getDate("LAST_CRASH_DATE")));
+        }
+        QUERY_TIMER.recordSince(start);
+        return Collections.unmodifiableList(buckets);
+    }
+
+    /**
+     * Drops every cached ranking, e.g. after the rollups were rebuilt.
+     */
+    void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durability and batching settings for a load, chosen per environment with crash.writeProfile.
+ *
+ * The write concern and retry setting apply to the whole client, so Phase 2 bucket writes
+ * follow the same profile as the Phase 1 inserts. Document validation is only bypassed for
+ * the crash package writes, which carry nearly all of the volume.
+ */
+enum WriteProfile {
+
+    // Driver defaults, as before profiles existed
+    DEFAULT("default", null, true, false, 1000, 4),
+    // Acknowledged by the primary only, no journal wait, bigger batches with more of them in flight
+    FAST_INGEST("fast-ingest", WriteConcern.W1.withJournal(false), false, true, 2000, 8),
+    // Acknowledged by a journaled majority; retryable writes ride out elections and failovers
+    SAFE("safe", WriteConcern.MAJORITY.withJournal(true).withWTimeout(30, TimeUnit.SECONDS), true, false, 1000, 4);
+
+    final String name;
+    final WriteConcern writeConcern;
+    final boolean retryWrites;
+    final boolean bypassDocumentValidation;
+    final int batchSize;
+    final int inserterThreads;
+
+    WriteProfile(String name, WriteConcern writeConcern, boolean retryWrites, boolean bypassDocumentValidation,
+                 int batchSize, int inserterThreads) {
+        this.name = name;
+        this.writeConcern = writeConcern;
+        this.retryWrites = retryWrites;
+        this.bypassDocumentValidation = bypassDocumentValidation;
+        this.batchSize = batchSize;
+        this.inserterThreads = inserterThreads;
+    }
+
+    static WriteProfile named(String name) {
+        for (WriteProfile profile : values()) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown write profile '" + name + "', expected default, fast-ingest or safe");
+    }
+
+    /**
+     * Applies the write concern and retry setting to the client being built.
+     */
+    MongoClientSettings.Builder apply(MongoClientSettings.Builder settings) {
+        if (writeConcern != null) {
+            settings.writeConcern(writeConcern);
+        }
+        return settings.retryWrites(retryWrites);
+    }
+
+    InsertManyOptions insertManyOptions() {
+        InsertManyOptions options = new InsertManyOptions().ordered(false);
+        return bypassDocumentValidation ? options.bypassDocumentValidation(true) : options;
+    }
+
+    BulkWriteOptions bulkWriteOptions() {
+        BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+        return bypassDocumentValidation ? options.bypassDocumentValidation(true) : options;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + (writeConcern == null ? "default write concern" : writeConcern.asDocument().toJson()) +
+                (retryWrites ? ", retryable writes" : "") +
+                (bypassDocumentValidation ? ", bypassDocumentValidation" : "") +
+                ", batch " + batchSize + ")";
+    }
+}
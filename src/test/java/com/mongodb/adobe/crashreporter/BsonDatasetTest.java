@@ -0,0 +1,94 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class BsonDatasetTest {
+
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysWhatTheWriterWrote() throws IOException {
+        Path file = dir.resolve("crashes.bson");
+        try (BsonDatasetWriter writer = new BsonDatasetWriter(file)) {
+            // Out of order, the way concurrent generators finish their batches
+            writer.write(2, documents(8, 2));
+            writer.write(0, documents(0, 4));
+            writer.write(1, documents(4, 4));
+            assertEquals(10, writer.documentCount());
+        }
+
+        try (BsonDataset dataset = BsonDataset.open(file, 3)) {
+            assertEquals(10, dataset.documentCount());
+            assertEquals(Files.size(file), dataset.byteCount());
+            int id = 0;
+            for (int batch = 0; batch < 4; batch++) {
+                List<RawBsonDocument> documents = dataset.batch(batch);
+                assertEquals(batch < 3 ? 3 : 1, documents.size());
+                for (RawBsonDocument document : documents) {
+                    assertEquals(id, document.getInt32("ID").getValue());
+                    assertEquals("module" + id, document.getString("MODULE").getValue());
+                    id++;
+                }
+            }
+        }
+    }
+
+    @Test
+    void writerRejectsAMissingBatch() throws IOException {
+        BsonDatasetWriter writer = new BsonDatasetWriter(dir.resolve("gap.bson"));
+        writer.write(1, documents(4, 4));
+        assertThrows(IllegalStateException.class, writer::close);
+    }
+
+    @Test
+    void rejectsATailTooShortForALength() throws IOException {
+        Path file = writeDataset("short-tail.bson");
+        Files.write(file, new byte[] {16, 0}, StandardOpenOption.APPEND);
+        assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> assertThrows(IllegalStateException.class, () -> BsonDataset.open(file, 3)));
+    }
+
+    @Test
+    void rejectsATailCutInsideADocument() throws IOException {
+        Path file = writeDataset("cut-document.bson");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThrows(IllegalStateException.class, () -> BsonDataset.open(file, 3));
+    }
+
+    private Path writeDataset(String name) throws IOException {
+        Path file = dir.resolve(name);
+        try (BsonDatasetWriter writer = new BsonDatasetWriter(file)) {
+            writer.write(0, documents(0, 5));
+        }
+        return file;
+    }
+
+    private static List<RawBsonDocument> documents(int firstId, int count) {
+        List<RawBsonDocument> documents = new ArrayList<>(count);
+        for (int id = firstId; id < firstId + count; id++) {
+            documents.add(new RawBsonDocument(new Document("ID", id).append("MODULE", "module" + id), CODEC));
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,116 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonString;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClobEncodingTest {
+
+    private static final String CLOB = clob(200_000);
+
+    @Test
+    void roundTripsEveryBinaryEncoding() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            if (!encoding.isBinary()) {
+                continue;
+            }
+            BsonBinary encoded = encoding.encode(CLOB);
+            assertEquals(CLOB, ClobEncoding.decode(encoded), encoding.name);
+            // The Document codec reads binaries back as Binary
+            assertEquals(CLOB, ClobEncoding.decode(new Binary(encoded.getType(), encoded.getData())), encoding.name);
+        }
+    }
+
+    @Test
+    void compressedEncodingsShrinkRepetitiveText() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            if (encoding.isCompressed()) {
+                BsonBinary encoded = encoding.encode(CLOB);
+                assertEquals(ClobEncoding.COMPRESSED_SUBTYPE, encoded.getType());
+                assertTrue(encoded.getData().length < CLOB.length() / 4, encoding.name);
+            }
+        }
+    }
+
+    @Test
+    void roundTripsNonAsciiText() {
+        String text = "Ausnahme in Modul \u00fcberpr\u00fcfen \u2013 \u30af\u30e9\u30c3\u30b7\u30e5";
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            if (encoding.isBinary()) {
+                assertEquals(text, ClobEncoding.decode(encoding.encode(text)), encoding.name);
+            }
+        }
+    }
+
+    @Test
+    void roundTripsEmptyText() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            if (encoding.isBinary()) {
+                assertEquals("", ClobEncoding.decode(encoding.encode("")), encoding.name);
+            }
+        }
+    }
+
+    @Test
+    void rejectsATextLengthOutOfRange() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            if (!encoding.isCompressed()) {
+                continue;
+            }
+            for (int length : new int[] {-1, ClobEncoding.MAX_TEXT_BYTES + 1, CLOB.length() - 1, CLOB.length() + 1}) {
+                byte[] data = encoding.encode(CLOB).getData();
+                ByteBuffer.wrap(data, 2, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(length);
+                assertThrows(IllegalArgumentException.class,
+                        () -> ClobEncoding.decode(new BsonBinary(ClobEncoding.COMPRESSED_SUBTYPE, data)),
+                        encoding.name + " " + length);
+            }
+        }
+    }
+
+    @Test
+    void decodesStringsAndMissingValues() {
+        assertEquals(CLOB, ClobEncoding.decode(CLOB));
+        assertEquals(CLOB, ClobEncoding.decode(new BsonString(CLOB)));
+        assertEquals(null, ClobEncoding.decode(null));
+    }
+
+    @Test
+    void rejectsValuesThatAreNoClob() {
+        assertThrows(IllegalArgumentException.class, () -> ClobEncoding.decode(42));
+        assertThrows(IllegalArgumentException.class,
+                () -> ClobEncoding.decode(new BsonBinary(BsonBinarySubType.UUID_STANDARD, new byte[16])));
+        byte[] newerVersion = ClobEncoding.ZSTD.encode(CLOB).getData();
+        newerVersion[0] = ClobEncoding.FORMAT_VERSION + 1;
+        assertThrows(IllegalArgumentException.class,
+                () -> ClobEncoding.decode(new BsonBinary(ClobEncoding.COMPRESSED_SUBTYPE, newerVersion)));
+    }
+
+    @Test
+    void namedAcceptsTheSettingValues() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            assertEquals(encoding, ClobEncoding.named(encoding.name));
+        }
+        assertThrows(IllegalArgumentException.class, () -> ClobEncoding.named("gzip"));
+    }
+
+    // Stack trace like text: a few distinct lines repeated with varying addresses
+    private static String clob(int length) {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder(length + 100);
+        while (text.length() < length) {
+            text.append("  at module").append(random.nextInt(16)).append(".dll+0x")
+                    .append(Integer.toHexString(random.nextInt(4096))).append('\n');
+        }
+        return text.substring(0, length);
+    }
+}
@@ -0,0 +1,103 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrashDocumentPipelineTest {
+
+    @Test
+    void writesEveryBatchAndCommitsInOrder() {
+        List<Integer> firstIds = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> watermarks = Collections.synchronizedList(new ArrayList<>());
+        new CrashDocumentPipeline<Integer>(3, 2, 2, 42L).run(1_000, 100, 0,
+                (firstId, count, random) -> firstId, firstIds::add, watermarks::add, 4);
+
+        assertEquals(10, firstIds.size());
+        for (int b = 0; b < 10; b++) {
+            assertTrue(firstIds.contains(b * 100 + 1));
+        }
+        assertEquals(10, (int) watermarks.get(watermarks.size() - 1));
+    }
+
+    @Test
+    void sameSeedGeneratesTheSameBatchesWhateverTheThreadCount() {
+        assertEquals(draws(1), draws(4));
+    }
+
+    @Test
+    void commitsAsynchronousWritesOffTheCompletingThread() throws InterruptedException {
+        ExecutorService driver = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "driver"));
+        Set<String> committingThreads = ConcurrentHashMap.newKeySet();
+        try {
+            new CrashDocumentPipeline<Integer>(2, 1, 4, 42L).runAsync(1_000, 100, 0,
+                    (firstId, count, random) -> firstId,
+                    batch -> CompletableFuture.runAsync(() -> { }, driver),
+                    nextBatch -> committingThreads.add(Thread.currentThread().getName()), 4);
+        } finally {
+            driver.shutdown();
+            driver.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(Collections.singleton("crash-committer-1"), committingThreads);
+    }
+
+    @Test
+    void failsOnAnErrorFromTheWriter() {
+        Error error = new AssertionError("writer died");
+        IllegalStateException thrown = assertTimeoutPreemptively(Duration.ofSeconds(30), () ->
+                assertThrows(IllegalStateException.class, () ->
+                        // One inserter and a one batch queue: a dead inserter would block the generators for good
+                        new CrashDocumentPipeline<Integer>(2, 1, 1, 42L).run(10_000, 10,
+                                (firstId, count, random) -> firstId,
+                                batch -> {
+                                    throw error;
+                                })));
+        assertSame(error, thrown.getCause());
+    }
+
+    @Test
+    void failsOnAnErrorFromAGenerator() {
+        Error error = new AssertionError("generator died");
+        IllegalStateException thrown = assertTimeoutPreemptively(Duration.ofSeconds(30), () ->
+                assertThrows(IllegalStateException.class, () ->
+                        new CrashDocumentPipeline<Integer>(2, 1, 1, 42L).run(10_000, 10,
+                                (firstId, count, random) -> {
+                                    if (firstId == 501) {
+                                        throw error;
+                                    }
+                                    return firstId;
+                                },
+                                batch -> { })));
+        assertSame(error, thrown.getCause());
+    }
+
+    private static List<Integer> draws(int generatorThreads) {
+        Integer[] draws = new Integer[20];
+        new CrashDocumentPipeline<Integer>(generatorThreads, 2, 4, 7L).run(2_000, 100,
+                (firstId, count, random) -> firstId / 100 * 1000 + nextDraw(random),
+                batch -> draws[batch / 1000] = batch % 1000);
+        List<Integer> result = new ArrayList<>();
+        Collections.addAll(result, draws);
+        return result;
+    }
+
+    private static int nextDraw(Random random) {
+        return random.nextInt(1000);
+    }
+}
@@ -0,0 +1,70 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongIntHashMapTest {
+
+    @Test
+    void keepsEveryEntryAcrossResizes() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        long initialTableBytes = map.tableBytes();
+        for (int i = 0; i < 10_000; i++) {
+            map.put(packed(i), i);
+        }
+        assertEquals(10_000, map.size());
+        assertTrue(map.tableBytes() > initialTableBytes);
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(packed(i)));
+        }
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(packed(10_000)));
+    }
+
+    @Test
+    void probesAFullTable() {
+        // Nine keys in sixteen slots, the most a table holds before it doubles, so lookups probe past taken slots
+        LongIntHashMap map = new LongIntHashMap(8);
+        long tableBytes = map.tableBytes();
+        for (int i = 1; i <= 9; i++) {
+            map.put(i * 16L, i);
+        }
+        assertEquals(tableBytes, map.tableBytes());
+        for (int i = 1; i <= 9; i++) {
+            assertEquals(i, map.get(i * 16L));
+        }
+        for (int i = 10; i <= 100; i++) {
+            assertEquals(LongIntHashMap.NO_VALUE, map.get(i * 16L));
+        }
+    }
+
+    @Test
+    void replacesExistingMapping() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        map.put(42L, 1);
+        map.put(42L, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(42L));
+    }
+
+    @Test
+    void storesZeroKeyOutOfLine() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(0L));
+        map.put(0L, 7);
+        map.put(0L, 8);
+        assertEquals(1, map.size());
+        assertEquals(8, map.get(0L));
+        for (int i = 1; i < 1_000; i++) {
+            map.put(i, i);
+        }
+        assertEquals(1_000, map.size());
+        assertEquals(8, map.get(0L));
+    }
+
+    // Same layout as the bucket index keys: tuple ID in the high int, offset in the low one
+    private static long packed(int i) {
+        return ((long) (i % 97) << 32) | (i / 97);
+    }
+}
@@ -0,0 +1,62 @@
+package com.mongodb.adobe.crashreporter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadSizeModelTest {
+
+    @Test
+    void classBytesIsTheSmallestSizeOfItsClass() {
+        for (int sizeClass = 0; sizeClass < PayloadSizeModel.SIZE_CLASSES; sizeClass++) {
+            int bytes = PayloadSizeModel.classBytes(sizeClass);
+            assertEquals(sizeClass, PayloadSizeModel.sizeClass(bytes));
+            if (bytes > 0) {
+                assertEquals(sizeClass - 1, PayloadSizeModel.sizeClass(bytes - 1));
+            }
+        }
+    }
+
+    @Test
+    void sizeClassesRoundDown() {
+        int[] sizes = {0, 63, 64, 1023, 1024, 1087, 1088, 5000, 65_537, PayloadSizeModel.MAX_FIELD_BYTES};
+        for (int bytes : sizes) {
+            int classBytes = PayloadSizeModel.classBytes(PayloadSizeModel.sizeClass(bytes));
+            assertTrue(classBytes <= bytes, bytes + " rounded up to " + classBytes);
+            // Sixteen steps per doubling keep the rounding error below 1/16
+            assertTrue(bytes - classBytes < Math.max(64, bytes / 16), bytes + " rounded down to " + classBytes);
+        }
+    }
+
+    @Test
+    void samplesStayWithinTheFieldLimit() {
+        PayloadSizeModel model = PayloadSizeModel.parse("lognormal:2000000:2");
+        Random random = new Random(1);
+        for (int i = 0; i < 1_000; i++) {
+            int sizeClass = model.sampleSizeClass(random);
+            assertTrue(sizeClass >= 0 && sizeClass < PayloadSizeModel.SIZE_CLASSES);
+        }
+    }
+
+    @Test
+    void parsesFixedAndUniformModels() {
+        Random random = new Random(1);
+        assertEquals(4096, PayloadSizeModel.parse("fixed:4096").sampleBytes(random));
+        PayloadSizeModel uniform = PayloadSizeModel.parse("uniform:100:200");
+        for (int i = 0; i < 1_000; i++) {
+            int bytes = uniform.sampleBytes(random);
+            assertTrue(bytes >= 100 && bytes <= 200);
+        }
+    }
+
+    @Test
+    void rejectsMalformedSpecs() {
+        assertThrows(IllegalArgumentException.class, () -> PayloadSizeModel.parse("gaussian:10"));
+        assertThrows(IllegalArgumentException.class, () -> PayloadSizeModel.parse("fixed:many"));
+        assertThrows(IllegalArgumentException.class, () -> PayloadSizeModel.parse("uniform:200:100"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.mongodb.adobe.crashreporter;
+
+import com.mongodb.MongoClientSettings;
+
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RawCrashPackageEncoderTest {
+
+    private static final Codec<Document> DOCUMENT_CODEC = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+    // Taken from the clock by each path, so only their type is compared
+    private static final List<String> DATE_FIELDS = Arrays.asList("EMAILDATE", "CRASHDATE", "CREATED", "ISSUEMAKER_TIMESTAMP");
+
+    private final ClobCache clobCache = new ClobCache(CrashReporterDataLoaderV2::getClob);
+
+    @Test
+    void encodesWhatTheDocumentGeneratorBuilds() {
+        for (ClobEncoding encoding : ClobEncoding.values()) {
+            RawCrashPackageEncoder encoder = new RawCrashPackageEncoder(clobCache, payloadModel(), encoding);
+            PayloadModel documentModel = payloadModel();
+            for (int seed = 0; seed < 20; seed++) {
+                for (Integer bucketId : new Integer[] {null, 10_000 + seed}) {
+                    Document appSubDoc = CrashReporterDataLoaderV2.createAppSubDoc(new Random(seed));
+                    int id = 1 + seed;
+                    String module = appSubDoc.getString("NAME") + "Core";
+                    Document document = CrashReporterDataLoaderV2.createCrashDocument(id, appSubDoc, module, 4096,
+                            bucketId, new Random(seed), clobCache, documentModel, encoding);
+                    RawBsonDocument raw = encoder.encode(id, appSubDoc, module, 4096, bucketId, new Random(seed));
+
+                    assertSameFields(new RawBsonDocument(document, DOCUMENT_CODEC), raw,
+                            encoding + ", seed " + seed + ", bucket " + bucketId);
+                }
+            }
+        }
+    }
+
+    private static void assertSameFields(BsonDocument expected, BsonDocument actual, String message) {
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()), message);
+        for (String key : expected.keySet()) {
+            if (DATE_FIELDS.contains(key)) {
+                assertEquals(BsonType.DATE_TIME, expected.get(key).getBsonType(), message + ", " + key);
+                assertEquals(BsonType.DATE_TIME, actual.get(key).getBsonType(), message + ", " + key);
+            } else {
+                assertEquals(expected.get(key), actual.get(key), message + ", " + key);
+            }
+        }
+    }
+
+    // Varying sizes, so each CLOB field draws from the Random and both paths must draw alike
+    private static PayloadModel payloadModel() {
+        Map<ClobField, PayloadSizeModel> sizeModels = new EnumMap<>(ClobField.class);
+        for (ClobField field : ClobField.values()) {
+            sizeModels.put(field, PayloadSizeModel.parse("lognormal:2000:1"));
+        }
+        return new PayloadModel(sizeModels);
+    }
+}